@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the bucketing and verification of one LSH
+ * band.
+ *
+ * Disabled by default, enable it with +lsh.Band#enabled=true.
+ */
+@Name("lsh.Band")
+@Label("LSH Band")
+@Category("LSH")
+@Description("Bucketing and candidate verification of one band")
+@Enabled(false)
+@StackTrace(false)
+public class BandEvent extends jdk.jfr.Event {
+
+    @Label("Band")
+    int band;
+
+    @Label("Documents")
+    int docs;
+
+    @Label("Buckets")
+    long buckets;
+
+    @Label("Candidates")
+    long candidates;
+
+    @Label("Verified Pairs")
+    long verified;
+}
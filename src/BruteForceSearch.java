@@ -27,20 +27,31 @@ public class BruteForceSearch extends SimilaritySearcher {
      */
     @Override
     public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> cands = new HashSet<SimilarPair>();
+        searchSimilarPairs(threshold, (doc1, doc2, sim) ->
+            cands.add(SimilarPair.of(reader.documents, doc1, doc2, sim)));
+        return cands;
+    }
+
+    /**
+     * Pass the pairs of objects with similarity above threshold to a sink.
+     * @param threshold the similarity threshold
+     * @param sink receives the pairs
+     */
+    @Override
+    public void searchSimilarPairs(double threshold, PairSink sink) {
         System.out.println("Reading and shingling documents...");
         List<Set<Integer>> docToShingle = reader.readAll();
 
         System.out.println("Computing similarities...");
-        Set<SimilarPair> cands = new HashSet<SimilarPair>();
         for (int obj1 = 0; obj1 < docToShingle.size(); obj1++){
             for (int obj2 = 0; obj2 < obj1; obj2++){
                 double sim = jaccardSimilarity(docToShingle.get(obj1), docToShingle.get(obj2));
                 if (sim > threshold){
-                    cands.add(new SimilarPair(reader.getExternalId(obj2), reader.getExternalId(obj1), sim));
+                    sink.accept(obj2, obj1, sim);
                 }
             }
         }
-        return cands;
     }
 
 }
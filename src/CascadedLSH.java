@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Two-level LSH: the bands are built on a short signature of numHashes
+ * minhashes, and only the documents that end up in a candidate pair get
+ * extraHashes additional minhashes to refine the similarity estimate.
+ *
+ * Level 1 verifies the candidates of every band on the short signatures,
+ * with the fraction of agreeing minhashes like level 2 and a threshold
+ * lowered by a few standard deviations of that numHashes estimate, so that
+ * similar pairs are rarely lost there. The remaining pairs are
+ * deduplicated and sorted on their largest document. Level 2 reads the
+ * documents again; a document with pending pairs gets its extension (hash
+ * functions [numHashes, numHashes + extraHashes) of the same seeded
+ * HashFamily) computed when it is read, and is kept in a cache until its last
+ * pair is refined. The refined estimate is the fraction of agreeing minhashes
+ * over all numHashes + extraHashes functions.
+ */
+public class CascadedLSH extends LSHOptimized {
+
+    // number of standard deviations the level 1 threshold is lowered by
+    static final double REJECT_DEVIATIONS = 3;
+    private static final int[] NO_EXTENSION = new int[0];
+
+    int extraHashes;
+
+    /**
+     * Construct a cascaded LSH similarity searcher.
+     *
+     * @param reader the document reader, it is read twice
+     * @param numHashes number of hashes of the short signature used for banding
+     * @param extraHashes number of hashes added to the signature of candidate documents
+     * @param numBands number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param seed should be used to generate any random numbers needed
+     */
+    public CascadedLSH(Reader reader, int numHashes, int extraHashes, int numBands, int numBuckets, int seed) {
+        super(reader, numHashes, numBands, numBuckets, seed);
+        this.extraHashes = extraHashes;
+    }
+
+    /**
+     * Get the threshold of level 1: threshold lowered by REJECT_DEVIATIONS
+     * standard deviations of a minhash estimate over numHashes functions.
+     */
+    double levelOneThreshold(double threshold) {
+        double deviation = Math.sqrt(threshold * (1 - threshold) / this.numHashes);
+        return Math.max(0, threshold - REJECT_DEVIATIONS * deviation);
+    }
+
+    /**
+     * Level 1 estimates the similarity of a candidate pair as the fraction of
+     * agreeing minhashes, the estimator the lowered threshold is derived for.
+     */
+    @Override
+    double signatureSimilarity(short[] signature1, short[] signature2) {
+        return refinedSimilarity(signature1, signature2, NO_EXTENSION, NO_EXTENSION);
+    }
+
+    /**
+     * Passes the pairs with refined similarity above threshold (approximate)
+     * to a sink. Every pair is passed once.
+     */
+    @Override
+    public void searchSimilarPairs(double threshold, PairSink sink) {
+        short[][] signatureMatrix = constructSignatureMatrix();
+        int numDocs = signatureMatrix.length;
+        int bandSize = this.numHashes / this.numBands;
+
+        // Level 1: candidate pairs of all bands above the lowered threshold
+        double levelOne = levelOneThreshold(threshold);
+        PairBuffer buffer = new PairBuffer();
+        long levelOneCandidates = 0;
+        for (int bandIndex = 0; bandIndex < this.numBands; bandIndex++) {
+            System.out.println("Generating candidate pairs for band: " + bandIndex);
+            levelOneCandidates += processBand(signatureMatrix, bandIndex, bandSize, this.numBuckets, levelOne, buffer);
+        }
+        long[] pairs = buffer.pairs;
+
+        long startTime = System.nanoTime();
+        Arrays.sort(pairs, 0, buffer.size);
+        int distinct = 0;
+        for (int i = 0; i < buffer.size; i++) {
+            if (distinct == 0 || pairs[i] != pairs[distinct - 1]) {
+                pairs[distinct++] = pairs[i];
+            }
+        }
+        // Number of pairs of every document that still have to be refined
+        int[] pending = new int[numDocs];
+        for (int i = 0; i < distinct; i++) {
+            pending[(int) (pairs[i] >>> 32)]++;
+            pending[(int) pairs[i]]++;
+        }
+
+        // Level 2: extend the signatures of the candidate documents while they are read again
+        long readNanos = reader.getReadNanos();
+        long shingleNanos = reader.getShingleNanos();
+        RunMetrics.recordStage("read", readNanos, reader.getDocsRead());
+        RunMetrics.recordStage("shingle", shingleNanos, reader.getDocsRead());
+        reader.reset();
+        HashFamily hashes = new HashFamily(this.numHashes + this.extraHashes, this.seed);
+        Map<Integer, int[]> cache = new HashMap<Integer, int[]>();
+        long extended = 0;
+        long peakCache = 0;
+        long accepted = 0;
+        int lastDoc = distinct == 0 ? -1 : (int) (pairs[distinct - 1] >>> 32);
+        int next = 0;
+        while (next < distinct && reader.hasNext() && reader.curDoc < lastDoc) {
+            Set<Integer> shingleDoc = reader.next();
+            int doc = reader.curDoc;
+            if (pending[doc] == 0) {
+                continue;
+            }
+            int[] extension = new int[this.extraHashes];
+            hashes.signature(shingleDoc, this.numHashes, extension);
+            extended++;
+            cache.put(doc, extension);
+            peakCache = Math.max(peakCache, cache.size());
+
+            // Refine the pairs of which doc is the largest document
+            while (next < distinct && (int) (pairs[next] >>> 32) == doc) {
+                int other = (int) pairs[next++];
+                double sim = refinedSimilarity(signatureMatrix[other], signatureMatrix[doc], cache.get(other), extension);
+                if (sim > threshold) {
+                    accepted++;
+                    sink.accept(other, doc, sim);
+                }
+                if (--pending[other] == 0) {
+                    cache.remove(other);
+                }
+                pending[doc]--;
+            }
+            if (pending[doc] == 0) {
+                cache.remove(doc);
+            }
+        }
+
+        RunMetrics.recordStage("extension", System.nanoTime() - startTime - reader.getReadNanos() - reader.getShingleNanos(),
+                               extended);
+        RunMetrics.add("cascadeLevelOnePassed", buffer.size);
+        RunMetrics.add("cascadePairs", distinct);
+        RunMetrics.add("cascadeRejected", levelOneCandidates - buffer.size);
+        RunMetrics.add("cascadeAccepted", accepted);
+        RunMetrics.add("cascadeExtendedDocs", extended);
+        RunMetrics.add("cascadeCachePeak", peakCache);
+        RunMetrics.setParameter("extraHashes", this.extraHashes);
+        System.out.println("Extended " + extended + " of " + numDocs + " signatures to refine " + distinct
+            + " candidate pairs, " + accepted + " accepted");
+        System.out.println("Extension cache: peak " + peakCache + " signatures ("
+            + peakCache * this.extraHashes * Integer.BYTES / 1024 + " KB)");
+    }
+
+    /**
+     * Collects the level 1 pairs, packed as (largest doc << 32 | smallest doc)
+     * so that sorting groups the pairs on their largest document.
+     */
+    private static class PairBuffer implements PairSink {
+        long[] pairs = new long[1024];
+        int size;
+
+        @Override
+        public void accept(int doc1, int doc2, double sim) {
+            if (size == pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[size++] = ((long) Math.max(doc1, doc2) << 32) | Math.min(doc1, doc2);
+        }
+    }
+
+    /**
+     * Estimate the similarity of two documents as the fraction of agreeing
+     * minhashes over their short signatures and their extensions.
+     */
+    static double refinedSimilarity(short[] signature1, short[] signature2, int[] extension1, int[] extension2) {
+        int agree = 0;
+        for (int i = 0; i < signature1.length; i++) {
+            if (signature1[i] == signature2[i]) {
+                agree++;
+            }
+        }
+        for (int i = 0; i < extension1.length; i++) {
+            if (extension1[i] == extension2[i]) {
+                agree++;
+            }
+        }
+        return (double) agree / (signature1.length + extension1.length);
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Runs LSH with checkpoints in a run directory, so that a long run can be
+ * resumed after a crash instead of starting over from reading the tweets.
+ *
+ * The run directory holds:
+ *  - params.properties: the parameters of the run,
+ *  - signatures.bin: the signature matrix and the external ids (a
+ *    SignatureFile), written once the signatures are constructed,
+ *  - band_i.pairs: the sorted, deduplicated pairs verified in band i (an
+ *    ExternalPairSorter run), written once the band is done.
+ * Every checkpoint is written sequentially to a temporary file and renamed
+ * when complete, so a checkpoint that exists is complete. The pairs of band i
+ * are spilled to the directory band_i.spill while the band is processed. The
+ * temporary files and spill runs that a crash leaves behind are deleted
+ * before a band is processed again, and all of them when a new run starts.
+ * When resuming, the parameters are validated, the signatures are loaded
+ * instead of reading the documents, and bands with a pair file are skipped.
+ * The pair files of all bands are finally merged into the TSV output; they
+ * are kept so that the output can be written again.
+ */
+public class CheckpointedLSH {
+
+    static final String PARAMS_FILE = "params.properties";
+    // number of pairs of a band kept in memory before they are spilled
+    static final int SORT_BUFFER = 1 << 20;
+
+    private LSHOptimized lsh;
+    private File runDir;
+    private Properties params;
+
+    /**
+     * Construct a checkpointed LSH run.
+     *
+     * @param lsh the LSH searcher, with its reader and parameters
+     * @param runDir directory for the checkpoints
+     * @param params the parameters that a resumed run must match
+     */
+    public CheckpointedLSH(LSHOptimized lsh, File runDir, Properties params) {
+        this.lsh = lsh;
+        this.runDir = runDir;
+        this.params = params;
+    }
+
+    /**
+     * Find the pairs with similarity above threshold (approximate) and write
+     * them as TSV or as a binary PairFile, most similar pairs first.
+     * @param threshold the similarity threshold
+     * @param outputFile the file to write the pairs to
+     * @param resume whether to continue from the checkpoints in the run directory
+     * @param binary whether to write a binary PairFile instead of TSV
+     * @return the number of distinct pairs written
+     */
+    public long run(double threshold, String outputFile, boolean resume, boolean binary) throws IOException {
+        runDir.mkdirs();
+        File paramsFile = new File(runDir, PARAMS_FILE);
+        if (resume && paramsFile.exists()) {
+            validateParams(paramsFile);
+            System.out.println("Resuming run in '" + runDir + "'");
+        } else {
+            // A new run: drop the checkpoints and the temporary files of an earlier run
+            new File(runDir, LSHOptimized.SIGNATURE_FILE).delete();
+            temporary(new File(runDir, LSHOptimized.SIGNATURE_FILE)).delete();
+            deleteSpillFiles(mergeSpillDir());
+            File[] files = runDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    // Band checkpoints, their temporary files and spill directories
+                    if (file.getName().startsWith("band_")) {
+                        deleteSpillFiles(file);
+                    }
+                }
+            }
+            FileWriter out = new FileWriter(temporary(paramsFile));
+            params.store(out, "LSH run parameters");
+            out.close();
+            commit(paramsFile);
+        }
+
+        // Signatures
+        File signatureFile = new File(runDir, LSHOptimized.SIGNATURE_FILE);
+        short[][] signatureMatrix;
+        if (signatureFile.exists()) {
+            long startTime = System.nanoTime();
+            signatureMatrix = loadSignatures(SignatureFile.open(signatureFile));
+            System.out.println("Loaded " + signatureMatrix.length + " signatures from the checkpoint");
+            RunMetrics.recordStage("checkpoint.load", System.nanoTime() - startTime, signatureMatrix.length);
+        } else {
+            signatureMatrix = lsh.constructSignatureMatrix();
+            long startTime = System.nanoTime();
+            SignatureFile.Writer writer = SignatureFile.create(temporary(signatureFile), lsh.numHashes);
+            for (int doc = 0; doc < signatureMatrix.length; doc++) {
+                writer.append(lsh.reader.getExternalId(doc), signatureMatrix[doc]);
+            }
+            writer.close();
+            commit(signatureFile);
+            RunMetrics.recordStage("checkpoint.signature", System.nanoTime() - startTime, signatureMatrix.length);
+        }
+        SignatureFile signatures = SignatureFile.open(signatureFile);
+
+        // Bands
+        int bandSize = lsh.numHashes / lsh.numBands;
+        for (int band = 0; band < lsh.numBands; band++) {
+            File bandFile = bandFile(band);
+            if (bandFile.exists()) {
+                System.out.println("Band " + band + " was completed before, skipping");
+                RunMetrics.add("bandsResumed", 1);
+                continue;
+            }
+            System.out.println("Generating candidate pairs for band: " + band);
+            // Drop what an interrupted attempt at this band left behind
+            temporary(bandFile).delete();
+            File spillDir = bandSpillDir(band);
+            deleteSpillFiles(spillDir);
+            spillDir.mkdir();
+            ExternalPairSorter sorter = new ExternalPairSorter(signatures::getId, spillDir, SORT_BUFFER);
+            lsh.processBand(signatureMatrix, band, bandSize, lsh.numBuckets, threshold, sorter);
+            long startTime = System.nanoTime();
+            long written = sorter.writeRun(temporary(bandFile));
+            commit(bandFile);
+            spillDir.delete();
+            RunMetrics.recordStage("checkpoint.band", System.nanoTime() - startTime, written);
+        }
+
+        // Merge the bands, keeping their checkpoints
+        File mergeDir = mergeSpillDir();
+        deleteSpillFiles(mergeDir);
+        mergeDir.mkdir();
+        ExternalPairSorter merger = new ExternalPairSorter(null, mergeDir, 0);
+        for (int band = 0; band < lsh.numBands; band++) {
+            merger.addRun(bandFile(band), false);
+        }
+        long written = binary ? merger.writePairFile(outputFile, RunMetrics.getParameters()) : merger.writeTsv(outputFile);
+        mergeDir.delete();
+        return written;
+    }
+
+    /**
+     * Check that the parameters of the run directory match the parameters of
+     * this run.
+     */
+    private void validateParams(File paramsFile) throws IOException {
+        Properties stored = new Properties();
+        FileReader in = new FileReader(paramsFile);
+        stored.load(in);
+        in.close();
+        if (!stored.equals(params)) {
+            throw new IllegalStateException("Cannot resume the run in '" + runDir + "': its parameters "
+                + stored + " differ from " + params);
+        }
+    }
+
+    /**
+     * Copy the signatures of a signature file into a signature matrix.
+     */
+    private static short[][] loadSignatures(SignatureFile signatures) {
+        short[][] signatureMatrix = new short[signatures.getNumDocs()][signatures.getNumHashes()];
+        for (int doc = 0; doc < signatureMatrix.length; doc++) {
+            signatures.getSignature(doc, signatureMatrix[doc]);
+        }
+        return signatureMatrix;
+    }
+
+    /**
+     * Get the pair file of a band.
+     */
+    File bandFile(int band) {
+        return new File(runDir, "band_" + band + ".pairs");
+    }
+
+    /**
+     * Get the directory for the spilled pairs of a band.
+     */
+    File bandSpillDir(int band) {
+        return new File(runDir, "band_" + band + ".spill");
+    }
+
+    /**
+     * Get the directory for the intermediate runs of the final merge.
+     */
+    File mergeSpillDir() {
+        return new File(runDir, "merge.spill");
+    }
+
+    /**
+     * Delete a file, or a spill directory and the runs in it, if it exists.
+     */
+    private static void deleteSpillFiles(File spillDir) {
+        File[] runs = spillDir.listFiles();
+        if (runs != null) {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+        spillDir.delete();
+    }
+
+    private static File temporary(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Rename a completely written temporary file to its final name.
+     */
+    private static void commit(File file) throws IOException {
+        Files.move(temporary(file).toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
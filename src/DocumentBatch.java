@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A reusable columnar buffer of up to capacity shingled documents, filled by
+ * {@link Reader#nextBatch(DocumentBatch)}.
+ *
+ * Document i of the batch has internal id getFirstDoc() + i, external id
+ * getId(i), and its distinct shingles, sorted, in the flat shingle array at
+ * [getStart(i), getEnd(i)). The arrays grow when needed and are reused by the
+ * next batch, so reading a batch allocates nothing in the steady state.
+ */
+public class DocumentBatch {
+
+    private long[] ids;
+    // offsets[i] is the start of the shingles of document i, offsets[size] their end
+    private int[] offsets;
+    private int[] shingles;
+    private int size;
+    private int firstDoc;
+    // number of shingles added to the current document
+    private int pendingShingles;
+
+    /**
+     * Construct an empty batch.
+     * @param capacity maximal number of documents per batch
+     */
+    public DocumentBatch(int capacity) {
+        this.ids = new long[capacity];
+        this.offsets = new int[capacity + 1];
+        this.shingles = new int[capacity * 64];
+    }
+
+    /**
+     * Get the maximal number of documents per batch.
+     */
+    public int getCapacity() {
+        return ids.length;
+    }
+
+    /**
+     * Get the number of documents in the batch.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Check whether the batch holds capacity documents.
+     */
+    public boolean isFull() {
+        return size == ids.length;
+    }
+
+    /**
+     * Get the internal id of the first document of the batch.
+     */
+    public int getFirstDoc() {
+        return firstDoc;
+    }
+
+    /**
+     * Get the external id of document i of the batch.
+     */
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Get the flat array of the shingles of all documents of the batch.
+     */
+    public int[] getShingles() {
+        return shingles;
+    }
+
+    /**
+     * Get the index of the first shingle of document i in getShingles().
+     */
+    public int getStart(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * Get the index after the last shingle of document i in getShingles().
+     */
+    public int getEnd(int i) {
+        return offsets[i + 1];
+    }
+
+    /**
+     * Get the number of distinct shingles of document i.
+     */
+    public int getNumShingles(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Empty the batch before it is filled again.
+     * @param firstDoc internal id of the first document that will be added
+     */
+    public void clear(int firstDoc) {
+        this.size = 0;
+        this.firstDoc = firstDoc;
+        this.offsets[0] = 0;
+    }
+
+    /**
+     * Start a new document; its shingles are added with addShingle and it is
+     * completed with endDocument.
+     * @param id external id of the document
+     */
+    public void beginDocument(long id) {
+        ids[size] = id;
+    }
+
+    /**
+     * Add a shingle to the current document, duplicates are allowed.
+     */
+    public void addShingle(int shingle) {
+        int next = offsets[size] + pendingShingles;
+        if (next == shingles.length) {
+            shingles = Arrays.copyOf(shingles, shingles.length * 2);
+        }
+        shingles[next] = shingle;
+        pendingShingles++;
+    }
+
+    /**
+     * Complete the current document: sort its shingles and drop duplicates.
+     * @return the number of distinct shingles of the document
+     */
+    public int endDocument() {
+        int start = offsets[size];
+        int end = start + pendingShingles;
+        Arrays.sort(shingles, start, end);
+        int distinct = start;
+        for (int i = start; i < end; i++) {
+            if (distinct == start || shingles[i] != shingles[distinct - 1]) {
+                shingles[distinct++] = shingles[i];
+            }
+        }
+        pendingShingles = 0;
+        size++;
+        offsets[size] = distinct;
+        return distinct - start;
+    }
+
+    /**
+     * Add a document given by its shingle set.
+     * @param id external id of the document
+     * @param shingleSet its shingles
+     * @return the number of distinct shingles of the document
+     */
+    public int addDocument(long id, Set<Integer> shingleSet) {
+        beginDocument(id);
+        for (int shingle : shingleSet) {
+            addShingle(shingle);
+        }
+        return endDocument();
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Maps the internal ids of the documents (0, 1, 2, ... in the order they are
+ * read) to their external ids (tweet ids) and back.
+ *
+ * The external ids are stored in a growable long[], 8 bytes per document
+ * instead of about 24 bytes for a boxed Long in an ArrayList. The reverse
+ * index from external to internal id is an open-addressing int table that is
+ * only built on the first reverse lookup, and is then kept up to date.
+ */
+public class DocumentRegistry {
+
+    // maximal fill ratio of the reverse index
+    static final double MAX_LOAD = 0.75;
+    // largest power of two that is a valid array length
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] ids;
+    private int size;
+    // internal id of ids[0], see dropBefore
+    private int firstId;
+
+    // internal id + 1 of the document in every slot, 0 for an empty slot; null until the first reverse lookup
+    private int[] table;
+    private int mask;
+
+    /**
+     * Construct an empty registry.
+     * @param initialCapacity number of documents to allocate room for
+     */
+    public DocumentRegistry(int initialCapacity) {
+        this.ids = new long[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Register the next document.
+     * @param externalId its external id
+     * @return its internal id
+     */
+    public int add(long externalId) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, (int) Math.min(Integer.MAX_VALUE - 8, ids.length + (long) (ids.length >> 1)));
+        }
+        ids[size++] = externalId;
+        int doc = firstId + size - 1;
+        if (table != null) {
+            if (size > (mask + 1) * MAX_LOAD) {
+                rehash();
+            } else {
+                insert(size - 1);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Get the external id of a document.
+     * @param doc internal id of the document
+     */
+    public long getId(int doc) {
+        int index = doc - firstId;
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No document with internal id " + doc);
+        }
+        return ids[index];
+    }
+
+    /**
+     * Get the internal id of a document.
+     * @param externalId the external id of the document
+     * @return its internal id, or -1 if it is not registered
+     */
+    public int getInternalId(long externalId) {
+        if (table == null) {
+            rehash();
+        }
+        int slot = (int) mix(externalId) & mask;
+        while (table[slot] != 0) {
+            int index = table[slot] - 1;
+            if (ids[index] == externalId) {
+                return firstId + index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of documents registered, including the dropped ones.
+     */
+    public int size() {
+        return firstId + size;
+    }
+
+    /**
+     * Remove all documents, keeping the allocated arrays.
+     */
+    public void clear() {
+        size = 0;
+        firstId = 0;
+        table = null;
+    }
+
+    /**
+     * Forget the documents before doc. Their ids can no longer be looked up,
+     * the ids of the other documents do not change.
+     * @param doc internal id of the first document that is kept
+     */
+    public void dropBefore(int doc) {
+        int drop = Math.min(doc - firstId, size);
+        if (drop > 0) {
+            System.arraycopy(ids, drop, ids, 0, size - drop);
+            size -= drop;
+            firstId += drop;
+            table = null;
+        }
+    }
+
+    /**
+     * Get the bytes used by the registry on the heap.
+     */
+    public long getHeapBytes() {
+        return (long) ids.length * Long.BYTES + (table == null ? 0 : (long) table.length * Integer.BYTES);
+    }
+
+    /**
+     * Rebuild the reverse index for the current documents.
+     */
+    private void rehash() {
+        long needed = (long) (Math.max(size, 8) / MAX_LOAD);
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalStateException("Too many documents for the reverse index: " + size);
+        }
+        int capacity = Integer.highestOneBit((int) needed - 1) << 1;
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int index) {
+        int slot = (int) mix(ids[index]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    /**
+     * MurmurHash3 finalizer, tweet ids share their low bits.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Compare the heap of a registry and of an ArrayList of boxed ids for a
+     * number of snowflake-like ids, and measure the lookup latency.
+     *
+     * Usage: java DocumentRegistry [numDocs]
+     */
+    public static void main(String[] args) {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 8870959;
+        // Snowflake ids: a millisecond timestamp in the high bits, a sequence number in the low bits
+        long base = 1500000000000L - 1288834974657L;
+        Random random = new Random(1234);
+
+        long before = usedHeap();
+        List<Long> list = new ArrayList<Long>();
+        for (int i = 0; i < numDocs; i++) {
+            list.add(((base + i / 8) << 22) | random.nextInt(1 << 12));
+        }
+        long listBytes = usedHeap() - before;
+
+        before = usedHeap();
+        DocumentRegistry registry = new DocumentRegistry(1024);
+        for (int i = 0; i < numDocs; i++) {
+            registry.add(list.get(i));
+        }
+        long registryBytes = usedHeap() - before;
+        registry.getInternalId(list.get(0));
+        long indexBytes = usedHeap() - before - registryBytes;
+
+        System.out.println(numDocs + " ids: ArrayList<Long> " + listBytes / (1024 * 1024) + " MB, registry "
+            + registryBytes / (1024 * 1024) + " MB, reverse index " + indexBytes / (1024 * 1024) + " MB");
+
+        int lookups = Math.min(numDocs, 1 << 22);
+        int[] docs = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            docs[i] = random.nextInt(numDocs);
+        }
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            checksum += registry.getId(docs[i]);
+        }
+        long idNanos = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            checksum += registry.getInternalId(list.get(docs[i]));
+        }
+        long internalNanos = System.nanoTime() - startTime;
+        System.out.println("Lookup latency: getId " + (double) idNanos / lookups + " ns, getInternalId "
+            + (double) internalNanos / lookups + " ns (checksum " + checksum + ")");
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
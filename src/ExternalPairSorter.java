@@ -0,0 +1,381 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.IntToLongFunction;
+
+/**
+ * A PairSink that sorts and deduplicates the similar pairs with a bounded
+ * amount of memory.
+ *
+ * Pairs are buffered in primitive arrays. When the buffer is full it is
+ * sorted and spilled as a run to a binary file (id1, id2, similarity per
+ * record). At the end all runs are merged, duplicate pairs are dropped and
+ * the pairs are written in the TSV format of Runner.printPairs, most similar
+ * pairs first. Memory use depends on the buffer size and the merge fan-in,
+ * not on the number of pairs.
+ */
+public class ExternalPairSorter implements PairSink {
+
+    // maximal number of runs that are merged at once
+    static final int MAX_FAN_IN = 128;
+    // size of the read and write buffer of one run file
+    static final int IO_BUFFER = 1 << 16;
+
+    private IntToLongFunction externalIds;
+    private File spillDir;
+
+    private long[] ids1;
+    private long[] ids2;
+    private double[] sims;
+    private int size;
+
+    private List<File> runs = new ArrayList<File>();
+    // runs added with delete == false, kept after merging
+    private List<File> keptRuns = new ArrayList<File>();
+    private long accepted;
+
+    /**
+     * Construct an external pair sorter.
+     * @param externalIds maps internal document ids to external ids
+     * @param spillDir directory for the temporary run files
+     * @param bufferPairs number of pairs kept in memory before a run is spilled
+     */
+    public ExternalPairSorter(IntToLongFunction externalIds, File spillDir, int bufferPairs) {
+        this.externalIds = externalIds;
+        this.spillDir = spillDir;
+        this.ids1 = new long[bufferPairs];
+        this.ids2 = new long[bufferPairs];
+        this.sims = new double[bufferPairs];
+    }
+
+    @Override
+    public void accept(int doc1, int doc2, double sim) {
+        // Normalize the order so that duplicates of the same pair are equal records
+        if (doc1 > doc2) {
+            int tmp = doc1;
+            doc1 = doc2;
+            doc2 = tmp;
+        }
+        if (size == ids1.length) {
+            spill();
+        }
+        ids1[size] = externalIds.applyAsLong(doc1);
+        ids2[size] = externalIds.applyAsLong(doc2);
+        // Rounded like PairCollector, so that both sort and print the same similarities
+        sims[size] = (float) sim;
+        size++;
+        accepted++;
+    }
+
+    /**
+     * Get the number of pairs accepted so far, including duplicates.
+     */
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Add a run written by {@link #writeRun(File)}, e.g. by another process.
+     * The run file is deleted once it has been merged.
+     * @param run the sorted run file
+     */
+    public void addRun(File run) {
+        addRun(run, true);
+    }
+
+    /**
+     * Add a run written by {@link #writeRun(File)}.
+     * @param run the sorted run file
+     * @param delete whether the run file is deleted once it has been merged
+     */
+    public void addRun(File run, boolean delete) {
+        runs.add(run);
+        if (!delete) {
+            keptRuns.add(run);
+        }
+    }
+
+    /**
+     * Merge all pairs and write them, deduplicated and sorted by decreasing
+     * similarity, as TSV. The temporary run files are deleted afterwards.
+     * @param outputFile the file to write the pairs to
+     * @return the number of distinct pairs written
+     */
+    public long writeTsv(String outputFile) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), IO_BUFFER);
+        long written = mergeAll((id1, id2, sim) -> {
+            bw.write(id1 + "\t" + id2 + "\t" + (float) sim);
+            bw.newLine();
+        });
+        bw.close();
+        return written;
+    }
+
+    /**
+     * Merge all pairs and write them, deduplicated and sorted by decreasing
+     * similarity, as a binary PairFile.
+     * @param outputFile the file to write the pairs to
+     * @param params the run parameters stored in the header
+     * @return the number of distinct pairs written
+     */
+    public long writePairFile(String outputFile, Map<String, String> params) throws IOException {
+        PairFile.Writer writer = PairFile.create(new File(outputFile), params);
+        long written = mergeAll(writer::append);
+        writer.close();
+        return written;
+    }
+
+    /**
+     * Merge all pairs and write them, deduplicated and sorted, as a single
+     * binary run that can be passed to {@link #addRun(File)}.
+     * @param runFile the file to write the run to
+     * @return the number of distinct pairs written
+     */
+    public long writeRun(File runFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), IO_BUFFER));
+        long written = mergeAll((id1, id2, sim) -> {
+            out.writeLong(id1);
+            out.writeLong(id2);
+            out.writeDouble(sim);
+        });
+        out.close();
+        return written;
+    }
+
+    /**
+     * Spill the buffer and merge all runs into a writer, in several passes if
+     * there are more than MAX_FAN_IN runs.
+     */
+    private long mergeAll(RecordWriter writer) throws IOException {
+        if (size > 0 || runs.isEmpty()) {
+            spill();
+        }
+        // Free the in-memory buffer before merging
+        ids1 = null;
+        ids2 = null;
+        sims = null;
+
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<File>();
+            for (int from = 0; from < runs.size(); from += MAX_FAN_IN) {
+                List<File> group = runs.subList(from, Math.min(from + MAX_FAN_IN, runs.size()));
+                File run = newRunFile();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER));
+                merge(group, keptRuns, (id1, id2, sim) -> {
+                    out.writeLong(id1);
+                    out.writeLong(id2);
+                    out.writeDouble(sim);
+                });
+                out.close();
+                merged.add(run);
+            }
+            runs = merged;
+        }
+
+        long written = merge(runs, keptRuns, writer);
+        runs.clear();
+        return written;
+    }
+
+    /**
+     * Sort the buffered pairs and write them as a new run.
+     */
+    private void spill() {
+        sort(ids1, ids2, sims, 0, size - 1);
+        try {
+            File run = newRunFile();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER));
+            for (int i = 0; i < size; i++) {
+                out.writeLong(ids1[i]);
+                out.writeLong(ids2[i]);
+                out.writeDouble(sims[i]);
+            }
+            out.close();
+            runs.add(run);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+
+    private File newRunFile() throws IOException {
+        File run = File.createTempFile("pairs", ".run", spillDir);
+        run.deleteOnExit();
+        return run;
+    }
+
+    /**
+     * Merge sorted runs, skipping duplicate pairs, and delete them unless
+     * they are kept.
+     * @return the number of distinct pairs passed to the writer
+     */
+    private static long merge(List<File> group, List<File> keptRuns, RecordWriter writer) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+        for (File run : group) {
+            RunReader reader = new RunReader(run, !keptRuns.contains(run));
+            if (reader.advance()) {
+                queue.add(reader);
+            } else {
+                reader.close();
+            }
+        }
+
+        long written = 0;
+        boolean first = true;
+        long lastId1 = 0;
+        long lastId2 = 0;
+        double lastSim = 0;
+        while (!queue.isEmpty()) {
+            RunReader reader = queue.poll();
+            if (first || reader.id1 != lastId1 || reader.id2 != lastId2 || reader.sim != lastSim) {
+                writer.write(reader.id1, reader.id2, reader.sim);
+                written++;
+                first = false;
+                lastId1 = reader.id1;
+                lastId2 = reader.id2;
+                lastSim = reader.sim;
+            }
+            if (reader.advance()) {
+                queue.add(reader);
+            } else {
+                reader.close();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Order of the records: decreasing similarity, then increasing ids.
+     */
+    static int compare(long aId1, long aId2, double aSim, long bId1, long bId2, double bSim) {
+        int c = Double.compare(bSim, aSim);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compare(aId1, bId1);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(aId2, bId2);
+    }
+
+    /**
+     * In-place quicksort of the parallel arrays on [lo, hi].
+     */
+    private static void sort(long[] ids1, long[] ids2, double[] sims, int lo, int hi) {
+        while (lo < hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    for (int j = i; j > lo && compare(ids1[j], ids2[j], sims[j], ids1[j - 1], ids2[j - 1], sims[j - 1]) < 0; j--) {
+                        swap(ids1, ids2, sims, j, j - 1);
+                    }
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            long pId1 = ids1[mid];
+            long pId2 = ids2[mid];
+            double pSim = sims[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(ids1[i], ids2[i], sims[i], pId1, pId2, pSim) < 0) {
+                    i++;
+                }
+                while (compare(ids1[j], ids2[j], sims[j], pId1, pId2, pSim) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(ids1, ids2, sims, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller part, loop on the larger one
+            if (j - lo < hi - i) {
+                sort(ids1, ids2, sims, lo, j);
+                lo = i;
+            } else {
+                sort(ids1, ids2, sims, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static void swap(long[] ids1, long[] ids2, double[] sims, int i, int j) {
+        long id1 = ids1[i];
+        ids1[i] = ids1[j];
+        ids1[j] = id1;
+        long id2 = ids2[i];
+        ids2[i] = ids2[j];
+        ids2[j] = id2;
+        double sim = sims[i];
+        sims[i] = sims[j];
+        sims[j] = sim;
+    }
+
+    /**
+     * Destination of merged records.
+     */
+    private interface RecordWriter {
+        void write(long id1, long id2, double sim) throws IOException;
+    }
+
+    /**
+     * Streams the records of one run file.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private File file;
+        private boolean delete;
+        private DataInputStream in;
+        long id1;
+        long id2;
+        double sim;
+
+        RunReader(File file, boolean delete) throws IOException {
+            this.file = file;
+            this.delete = delete;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                id1 = in.readLong();
+                id2 = in.readLong();
+                sim = in.readDouble();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+            if (delete) {
+                file.delete();
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return compare(id1, id2, sim, o.id1, o.id2, o.sim);
+        }
+    }
+}
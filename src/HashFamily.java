@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * A seeded family of universal hash functions for minhashing, evaluated on
+ * the fly instead of from a numShingles x numHashes table.
+ *
+ * Function i is the multiply-add-shift hash h_i(x) = (a_i * x + b_i) >>> 33
+ * on the 32 bits of a shingle x, with random 64-bit a_i and b_i drawn from a
+ * SplittableRandom with the given seed. The values are non-negative 31-bit
+ * ints, so shingles may come from the full 32-bit hash space and memory does
+ * not depend on the number of shingles. The same seed always gives the same
+ * functions, and so the same signatures.
+ */
+public class HashFamily {
+
+    private long[] multipliers;
+    private long[] increments;
+
+    /**
+     * Construct a family of hash functions.
+     * @param numHashes number of hash functions
+     * @param seed seed of the random coefficients
+     */
+    public HashFamily(int numHashes, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        this.multipliers = new long[numHashes];
+        this.increments = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            multipliers[i] = random.nextLong();
+            increments[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Get the number of hash functions.
+     */
+    public int getNumHashes() {
+        return multipliers.length;
+    }
+
+    /**
+     * Apply hash function i to a shingle.
+     * @param i index of the hash function
+     * @param shingle the shingle, any int
+     * @return the hash value in [0, 2^31)
+     */
+    public int hash(int i, int shingle) {
+        return (int) ((multipliers[i] * (shingle & 0xffffffffL) + increments[i]) >>> 33);
+    }
+
+    /**
+     * Compute the minhash signature of a shingle set for the hash functions
+     * [from, from + signature.length).
+     * @param shingles the shingle set
+     * @param from index of the first hash function
+     * @param signature receives the minimal hash values, Integer.MAX_VALUE for an empty set
+     */
+    public void signature(Set<Integer> shingles, int from, int[] signature) {
+        int numHashes = signature.length;
+        for (int i = 0; i < numHashes; i++) {
+            signature[i] = Integer.MAX_VALUE;
+        }
+        for (int shingle : shingles) {
+            long x = shingle & 0xffffffffL;
+            for (int i = 0; i < numHashes; i++) {
+                int value = (int) ((multipliers[from + i] * x + increments[from + i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the minhash signature of a shingle set, keeping the 15 most
+     * significant bits of every minimal hash value so that it fits a short.
+     * @param shingles the shingle set
+     * @param signature receives the numHashes signature values, Short.MAX_VALUE for an empty set
+     * @param scratch scratch buffer of numHashes ints
+     */
+    public void signature(Set<Integer> shingles, short[] signature, int[] scratch) {
+        signature(shingles, 0, scratch);
+        for (int i = 0; i < signature.length; i++) {
+            // The minimum of the truncated values is the truncated minimum
+            signature[i] = (short) (scratch[i] >>> 16);
+        }
+    }
+
+    /**
+     * Compute the minhash signature of the shingles [start, end) of a flat
+     * shingle array, e.g. of one document of a {@link DocumentBatch}, for the
+     * hash functions [from, from + signature.length).
+     * @param shingles the flat shingle array
+     * @param start index of the first shingle
+     * @param end index after the last shingle
+     * @param from index of the first hash function
+     * @param signature receives the minimal hash values, Integer.MAX_VALUE for no shingles
+     */
+    public void signature(int[] shingles, int start, int end, int from, int[] signature) {
+        int numHashes = signature.length;
+        for (int i = 0; i < numHashes; i++) {
+            signature[i] = Integer.MAX_VALUE;
+        }
+        for (int s = start; s < end; s++) {
+            long x = shingles[s] & 0xffffffffL;
+            for (int i = 0; i < numHashes; i++) {
+                int value = (int) ((multipliers[from + i] * x + increments[from + i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the 15-bit minhash signature of the shingles [start, end) of a
+     * flat shingle array.
+     * @param shingles the flat shingle array
+     * @param start index of the first shingle
+     * @param end index after the last shingle
+     * @param signature receives the numHashes signature values, Short.MAX_VALUE for no shingles
+     * @param scratch scratch buffer of numHashes ints
+     */
+    public void signature(int[] shingles, int start, int end, short[] signature, int[] scratch) {
+        signature(shingles, start, end, 0, scratch);
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = (short) (scratch[i] >>> 16);
+        }
+    }
+
+    /**
+     * Compute the full 31-bit minhash signature of the shingles [start, end)
+     * of a flat shingle array, stored as two shorts per hash function: the
+     * high half of value i at 2 * i and its low half at 2 * i + 1. A band of
+     * these rows then has the bytes of the int values.
+     * @param shingles the flat shingle array
+     * @param start index of the first shingle
+     * @param end index after the last shingle
+     * @param signature receives the 2 * numHashes halves
+     * @param scratch scratch buffer of numHashes ints
+     */
+    public void intSignature(int[] shingles, int start, int end, short[] signature, int[] scratch) {
+        signature(shingles, start, end, 0, scratch);
+        for (int i = 0; i < scratch.length; i++) {
+            signature[2 * i] = (short) (scratch[i] >>> 16);
+            signature[2 * i + 1] = (short) scratch[i];
+        }
+    }
+}
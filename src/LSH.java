@@ -56,6 +56,14 @@ public class LSH extends SimilaritySearcher {
         return similarPairs;
     }
 
+    /**
+     * Passes the pairs with similarity above threshold (approximate) to a sink.
+     */
+    @Override
+    public void searchSimilarPairs(double threshold, PairSink sink) {
+        new LSHOptimized(reader, numHashes, numBands, numBuckets, seed).searchSimilarPairs(threshold, sink);
+    }
+
     public Set<Integer> arrayToSet(int[] arr) {
         Set<Integer> set = new HashSet<>();
         for (int i : arr) {
@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * LSH Forest on the minhash signatures: one index serves any similarity
+ * threshold, instead of one set of band tables per bands x rows choice.
+ *
+ * Tree t covers the signature rows [t * depth, (t + 1) * depth), with depth =
+ * numHashes / numTrees. Every tree is stored as the documents sorted on the
+ * lexicographic order of their rows, together with the length of the common
+ * prefix of every document with the previous one. The documents that share
+ * their first k rows in a tree are then a contiguous run of the sorted array,
+ * so a query with prefix length k is a linear scan that only has to compare
+ * a common prefix length with k. The prefix length of a threshold t is chosen
+ * so that the S-curve 1 - (1 - s^k)^numTrees of numTrees bands of k rows has
+ * its threshold (1 / numTrees)^(1 / k) closest to t.
+ */
+public class LSHForest extends SimilaritySearcher {
+
+    int numHashes;
+    int numTrees;
+    int depth;
+    int seed;
+
+    private short[][] signatureMatrix;
+    // per tree, the documents in sorted order
+    private int[][] sorted;
+    // per tree, the common prefix length of sorted[t][i] and sorted[t][i - 1]
+    private byte[][] prefixes;
+
+    /**
+     * Construct an LSH Forest similarity searcher.
+     *
+     * @param reader the document reader
+     * @param numHashes number of hashes to use to construct the signature matrix
+     * @param numTrees number of trees, each tree uses numHashes / numTrees rows
+     * @param seed should be used to generate any random numbers needed
+     */
+    public LSHForest(Reader reader, int numHashes, int numTrees, int seed) {
+        super(reader);
+        this.numHashes = numHashes;
+        this.numTrees = numTrees;
+        this.depth = Math.min(numHashes / numTrees, Byte.MAX_VALUE);
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the pairs with similarity above threshold (approximate).
+     */
+    @Override
+    public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> similarPairs = new HashSet<SimilarPair>();
+        searchSimilarPairs(threshold, (doc1, doc2, sim) -> similarPairs.add(SimilarPair.of(reader.documents, doc1, doc2, sim)));
+        return similarPairs;
+    }
+
+    /**
+     * Passes the pairs with similarity above threshold (approximate) to a
+     * sink. The index is built on the first search and reused afterwards.
+     */
+    @Override
+    public void searchSimilarPairs(double threshold, PairSink sink) {
+        build();
+        search(threshold, prefixLength(threshold), sink);
+    }
+
+    /**
+     * Get the prefix length of a threshold: the k in [1, depth] for which
+     * (1 / numTrees)^(1 / k) is closest to threshold.
+     */
+    public int prefixLength(double threshold) {
+        int best = 1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int k = 1; k <= depth; k++) {
+            double distance = Math.abs(Math.pow(1.0 / numTrees, 1.0 / k) - threshold);
+            if (distance < bestDistance) {
+                best = k;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Read the documents, construct their signatures and sort every tree.
+     * Does nothing if the index was built before.
+     */
+    public void build() {
+        if (signatureMatrix != null) {
+            return;
+        }
+        LSHOptimized lsh = new LSHOptimized(reader, numHashes, numTrees, 1, seed);
+        signatureMatrix = lsh.constructSignatureMatrix();
+
+        long startTime = System.nanoTime();
+        int numDocs = signatureMatrix.length;
+        sorted = new int[numTrees][];
+        prefixes = new byte[numTrees][];
+        for (int tree = 0; tree < numTrees; tree++) {
+            int[] docs = new int[numDocs];
+            for (int doc = 0; doc < numDocs; doc++) {
+                docs[doc] = doc;
+            }
+            int start = tree * depth;
+            sort(docs, start, 0, numDocs - 1);
+            byte[] prefix = new byte[numDocs];
+            for (int i = 1; i < numDocs; i++) {
+                prefix[i] = (byte) commonPrefix(signatureMatrix[docs[i - 1]], signatureMatrix[docs[i]], start);
+            }
+            sorted[tree] = docs;
+            prefixes[tree] = prefix;
+        }
+        RunMetrics.recordStage("forestBuild", System.nanoTime() - startTime, numDocs);
+    }
+
+    /**
+     * Verify all pairs of documents that share their first k rows in some
+     * tree. A pair that shares a prefix in several trees is verified once per
+     * tree, like a pair that shares several LSH bands.
+     * @param threshold the similarity threshold
+     * @param k the prefix length
+     * @param sink receives the pairs above threshold
+     * @return the number of candidate pairs that were verified
+     */
+    public long search(double threshold, int k, PairSink sink) {
+        long startTime = System.nanoTime();
+        // The distinct signature values of every document, computed once per search
+        short[][] values = new short[signatureMatrix.length][];
+        short[] distinct = new short[numHashes];
+        for (int doc = 0; doc < signatureMatrix.length; doc++) {
+            values[doc] = Arrays.copyOf(distinct, SimilarityJoin.distinctValues(signatureMatrix[doc], distinct));
+        }
+        long numCandidates = 0;
+        long numVerified = 0;
+        for (int tree = 0; tree < numTrees; tree++) {
+            int[] docs = sorted[tree];
+            byte[] prefix = prefixes[tree];
+            int start = 0;
+            while (start < docs.length) {
+                // The run [start, end) shares its first k rows
+                int end = start + 1;
+                while (end < docs.length && prefix[end] >= k) {
+                    end++;
+                }
+                for (int i = start; i < end - 1; i++) {
+                    short[] values1 = values[docs[i]];
+                    for (int j = i + 1; j < end; j++) {
+                        numCandidates++;
+                        short[] values2 = values[docs[j]];
+                        double sim = SimilarityJoin.jaccard(values1, values1.length, values2, values2.length);
+                        if (sim > threshold) {
+                            numVerified++;
+                            sink.accept(docs[i], docs[j], sim);
+                        }
+                    }
+                }
+                start = end;
+            }
+        }
+        RunMetrics.recordStage("forestQuery", System.nanoTime() - startTime, numCandidates);
+        RunMetrics.add("candidates", numCandidates);
+        RunMetrics.add("verified", numVerified);
+        return numCandidates;
+    }
+
+    /**
+     * For every threshold, search the forest and rebuild LSH band tables with
+     * the same banding on the same signatures: band t holds the prefix rows
+     * [t * depth, t * depth + k) of tree t, keyed on their full 32-bit hash
+     * rather than a bucket count, so that the tables only differ from the
+     * trees by hash collisions. Write the time, candidates and pairs of both,
+     * and the fraction of the rebuilt pairs the forest finds, as CSV.
+     * @param thresholds the similarity thresholds
+     * @param csvFile the file to write the comparison to
+     */
+    public void compareWithRebuild(double[] thresholds, String csvFile) throws IOException {
+        long startTime = System.nanoTime();
+        build();
+        double buildSeconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Built forest of " + numTrees + " trees of depth " + depth + " in " + buildSeconds + " seconds");
+
+        BufferedWriter bw = new BufferedWriter(new FileWriter(csvFile));
+        bw.write("threshold,prefix,forest_seconds,forest_candidates,forest_pairs,rebuild_seconds,rebuild_candidates,"
+            + "rebuild_pairs,common_pairs,recall_vs_rebuild");
+        bw.newLine();
+        LSHOptimized lsh = new LSHOptimized(reader, numHashes, numTrees, Integer.MAX_VALUE, seed);
+        for (double threshold : thresholds) {
+            int k = prefixLength(threshold);
+
+            Set<Long> forestPairs = new HashSet<Long>();
+            startTime = System.nanoTime();
+            long forestCandidates = search(threshold, k, (doc1, doc2, sim) -> forestPairs.add(packPair(doc1, doc2)));
+            double forestSeconds = (System.nanoTime() - startTime) / 1e9;
+
+            Set<Long> rebuildPairs = new HashSet<Long>();
+            startTime = System.nanoTime();
+            long rebuildCandidates = 0;
+            for (int tree = 0; tree < numTrees; tree++) {
+                rebuildCandidates += lsh.processBand(signatureMatrix, tree, tree * depth, k, Integer.MAX_VALUE, threshold,
+                    (doc1, doc2, sim) -> rebuildPairs.add(packPair(doc1, doc2)));
+            }
+            double rebuildSeconds = (System.nanoTime() - startTime) / 1e9;
+
+            long common = 0;
+            for (long pair : rebuildPairs) {
+                if (forestPairs.contains(pair)) {
+                    common++;
+                }
+            }
+            double recall = rebuildPairs.isEmpty() ? 1.0 : (double) common / rebuildPairs.size();
+            System.out.println("Threshold " + threshold + " (prefix " + k + "): forest " + forestPairs.size() + " pairs in "
+                + forestSeconds + " s, rebuild " + rebuildPairs.size() + " pairs in " + rebuildSeconds + " s, recall vs rebuild " + recall);
+            bw.write(threshold + "," + k + "," + forestSeconds + "," + forestCandidates + "," + forestPairs.size() + ","
+                + rebuildSeconds + "," + rebuildCandidates + "," + rebuildPairs.size() + "," + common + "," + recall);
+            bw.newLine();
+        }
+        bw.close();
+        System.out.println("Forest comparison saved to '" + csvFile + "'");
+    }
+
+    private static long packPair(int doc1, int doc2) {
+        return ((long) Math.min(doc1, doc2) << 32) | Math.max(doc1, doc2);
+    }
+
+    /**
+     * Get the number of equal rows of two signatures from start, at most depth.
+     */
+    private int commonPrefix(short[] signature1, short[] signature2, int start) {
+        int k = 0;
+        while (k < depth && signature1[start + k] == signature2[start + k]) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Compare the rows [start, start + depth) of two documents lexicographically.
+     */
+    private int compare(int doc1, int doc2, int start) {
+        short[] signature1 = signatureMatrix[doc1];
+        short[] signature2 = signatureMatrix[doc2];
+        for (int i = start; i < start + depth; i++) {
+            if (signature1[i] != signature2[i]) {
+                return Short.compare(signature1[i], signature2[i]);
+            }
+        }
+        return Integer.compare(doc1, doc2);
+    }
+
+    /**
+     * In-place quicksort of documents on their rows of a tree, on [lo, hi].
+     */
+    private void sort(int[] docs, int start, int lo, int hi) {
+        while (lo < hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    for (int j = i; j > lo && compare(docs[j], docs[j - 1], start) < 0; j--) {
+                        int tmp = docs[j];
+                        docs[j] = docs[j - 1];
+                        docs[j - 1] = tmp;
+                    }
+                }
+                return;
+            }
+            int pivot = docs[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(docs[i], pivot, start) < 0) {
+                    i++;
+                }
+                while (compare(docs[j], pivot, start) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = docs[i];
+                    docs[i] = docs[j];
+                    docs[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller part, loop on the larger one
+            if (j - lo < hi - i) {
+                sort(docs, start, lo, j);
+                lo = i;
+            } else {
+                sort(docs, start, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@
  import java.util.stream.IntStream;
  import java.io.*;
  import java.nio.ByteBuffer;
+ import java.nio.file.Files;
  
  /**
   * Implementation of minhash and locality sensitive hashing (LSH) to find
@@ -25,6 +26,22 @@
      int numBands;
      int numBuckets;
      int seed;
+     // estimated memory above which the out-of-core mode is used
+     long memoryBudget = Long.MAX_VALUE;
+     // directory for the spill files of the out-of-core mode
+     File spillDir = new File(System.getProperty("java.io.tmpdir"));
+     // whether the in-memory mode builds band tables per range of shingle set sizes
+     boolean sizePartitioned = false;
+     // whether the in-memory mode first counts the band keys and only stores documents with a shared key
+     boolean singletonFilter = false;
+     // whether the in-memory mode keeps the full 31-bit minhashes, two signature rows per hash
+     boolean intSignatures = false;
+     // bits of the key sketch per document, and number of sketch positions per key
+     static final int SKETCH_BITS_PER_DOC = 8;
+     static final int SKETCH_HASHES = 2;
+
+     // name of the signature file written by writeSignatureFiles
+     public static final String SIGNATURE_FILE = "signatures.bin";
  
      /**
       * Construct an LSH similarity searcher.
@@ -53,66 +70,541 @@
     public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
         // Final similar pairs
         Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>();
-        // Matrix of hash values (used for constructing signature matrix)
-        short[][]  hashTable = Minhash
-            .constructHashTableOptimized(this.numHashes, this.reader.getNumShingles(), this.seed);
+        searchSimilarPairs(threshold, (docId1, docId2, sim) -> similarPairsAboveThreshold
+            .add(SimilarPair.of(reader.documents, docId1, docId2, sim)));
+        return similarPairsAboveThreshold;
+    }
+
+    /**
+     * Passes the pairs with similarity above threshold (approximate) to a sink.
+     */
+    @Override
+    public void searchSimilarPairs(double threshold, PairSink sink) {
+        long estimate = estimateInMemoryBytes();
+        if (estimate > this.memoryBudget && this.intSignatures) {
+            throw new IllegalStateException("Estimated memory of " + estimate / (1024 * 1024) + " MB exceeds the budget of "
+                + this.memoryBudget / (1024 * 1024) + " MB, but int signatures are only supported in memory");
+        }
+        if (estimate > this.memoryBudget) {
+            System.out.println("Estimated memory of " + estimate / (1024 * 1024) + " MB exceeds the budget of "
+                + this.memoryBudget / (1024 * 1024) + " MB, using out-of-core banding");
+            try {
+                searchSimilarPairsOutOfCore(threshold, sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
         // Constructed signature matrix
-        short[][] signatureMatrix = Minhash.constructSignatureMatrixOptimized(this.reader, hashTable);
+        short[][] signatureMatrix = constructSignatureMatrix();
 
-        
-        int bandSize = this.numHashes / this.numBands;
+        // A band of int signatures covers two rows per hash function
+        int bandSize = this.numHashes / this.numBands * signatureRows() / this.numHashes;
 
         //For each band of the signature matrix
         for(int bandIndex = 0 ; bandIndex < numBands ; bandIndex++){
             System.out.println("Generating candidate pairs for band: " + bandIndex);
-            // Array that stores documents in buckets (used for identifying candidate pairs)
-            LSHHashTable bucketsForBand = new LSHHashTable();
-            // Indexes that specify the range of rows of the bands
-            int startIndex = bandIndex * bandSize;
-            int endIndex = (bandIndex + 1) * bandSize;
-            // Iterate over each signature in the signature matrix
-            for(int docInternalId = 0 ; docInternalId < signatureMatrix.length ; docInternalId++){
-                // Document signature
-                short[] docSignature = signatureMatrix[docInternalId];
-                // Portion of signature that corresponds with band
-                short[] bandSigForDoc = new short[bandSize];
-                int bandSigIndex = 0;
-
-                for (int i = startIndex; i < endIndex; i++) {
-                    bandSigForDoc[bandSigIndex] = docSignature[i];
-                    bandSigIndex++;
-                }
+            processBand(signatureMatrix, bandIndex, bandSize, this.numBuckets, threshold, sink);
+        }
+    }
+
+    /**
+     * Build the band tables per range of shingle set sizes. Two sets with
+     * sizes a <= b can only have a Jaccard similarity of at least t when
+     * a / b >= t, so documents of very different sizes are never candidates.
+     * @param sizePartitioned whether to partition the documents on size
+     */
+    public void setSizePartitioned(boolean sizePartitioned) {
+        this.sizePartitioned = sizePartitioned;
+    }
+
+    /**
+     * Process every band in two passes: first count the band keys of all
+     * documents in a sketch of 2-bit saturating counters, then only store the
+     * documents whose key was seen at least twice in the hash table. With many
+     * buckets most keys are unique, so the table only holds the documents that
+     * can form a candidate pair.
+     * @param singletonFilter whether to filter the singleton keys
+     */
+    public void setSingletonFilter(boolean singletonFilter) {
+        this.singletonFilter = singletonFilter;
+    }
+
+    /**
+     * Keep the full 31-bit minimal hash values in the in-memory mode instead
+     * of their 15 most significant bits. Two documents then only agree on a
+     * hash function by chance with probability 2^-31 instead of 2^-15, at twice
+     * the signature memory. Not supported by the out-of-core mode.
+     * @param intSignatures whether to use int signatures
+     */
+    public void setIntSignatures(boolean intSignatures) {
+        this.intSignatures = intSignatures;
+    }
 
-                // Hash the band signature 
-                int hashedBand = MurmurHash.hash32(shortArrayToByteArray(bandSigForDoc), bandSize * Short.BYTES, this.seed);
-                // Retrieve bucket from hash of band signature
-                int bucket = hashedBand % this.numBuckets;
-                // Place the internal document id in the bucket hashtable
-                bucketsForBand.insert(bucket, docInternalId);
+    /**
+     * Get the number of rows of a signature: numHashes, or two per hash
+     * function with int signatures.
+     */
+    int signatureRows() {
+        return this.intSignatures ? 2 * this.numHashes : this.numHashes;
+    }
+
+    /**
+     * Use the out-of-core mode when the estimated memory of the in-memory mode
+     * exceeds a budget.
+     * @param memoryBudget the memory budget in bytes
+     * @param spillDir directory for the spill files
+     */
+    public void setOutOfCore(long memoryBudget, File spillDir) {
+        this.memoryBudget = memoryBudget;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Rough estimate of the heap needed by the in-memory mode: the signature
+     * matrix, the external ids in the DocumentRegistry and the hash table of
+     * one band. When the reader has no document limit (a MultiFileTwitterReader
+     * without -maxTweets), its input is counted first.
+     * @return the estimated number of bytes
+     */
+    public long estimateInMemoryBytes() {
+        long numDocs;
+        try {
+            numDocs = this.reader.countDocuments();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long signatureBytes = numDocs * (16 + 8 + (long) signatureRows() * Short.BYTES);
+        // A long per document, in an array that grows by half
+        long idBytes = numDocs * 12;
+        // HashMap entry, HashSet with its own map and a boxed Integer per document
+        long bandTableBytes = numDocs * 160;
+        return signatureBytes + idBytes + bandTableBytes;
+    }
+
+    /**
+     * Out-of-core version of searchSimilarPairs. The signatures are written to
+     * a memory-mapped signature file and the bucket of every band to a key file
+     * per band while they are computed. The bands are then processed one at a
+     * time from their key files, so neither the signature matrix nor the hash
+     * tables are kept on the heap.
+     */
+    public void searchSimilarPairsOutOfCore(double threshold, PairSink sink) throws IOException {
+        File workDir = Files.createTempDirectory(this.spillDir.toPath(), "lsh").toFile();
+        File[] bandFiles = writeSignatureFiles(workDir);
+
+        File signatureFile = new File(workDir, SIGNATURE_FILE);
+        SignatureFile signatures = SignatureFile.open(signatureFile);
+        for (int bandIndex = 0; bandIndex < this.numBands; bandIndex++) {
+            System.out.println("Generating candidate pairs for band: " + bandIndex);
+            processBandFile(signatures, bandFiles[bandIndex], bandIndex, 0, 1, threshold, sink);
+            bandFiles[bandIndex].delete();
+        }
+        signatureFile.delete();
+        workDir.delete();
+    }
+
+    /**
+     * Read all documents and write their signatures to the signature file
+     * SIGNATURE_FILE and their band keys to one key file per band, all in the
+     * given directory.
+     * @param workDir the directory to write the files to
+     * @return the key file of every band
+     */
+    public File[] writeSignatureFiles(File workDir) throws IOException {
+        int bandSize = this.numHashes / this.numBands;
+
+        long startTime = System.nanoTime();
+        HashFamily hashes = new HashFamily(this.numHashes, this.seed);
+        SignatureFile.Writer signatureWriter = SignatureFile.create(new File(workDir, SIGNATURE_FILE), this.numHashes);
+        File[] bandFiles = new File[this.numBands];
+        DataOutputStream[] bandKeys = new DataOutputStream[this.numBands];
+        for (int band = 0; band < this.numBands; band++) {
+            bandFiles[band] = bandFile(workDir, band);
+            bandKeys[band] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bandFiles[band]), 1 << 16));
+        }
+        int numDocs = Minhash.streamSignaturesOptimized(this.reader, hashes, signatureWriter,
+            bandSize, this.numBuckets, this.seed, bandKeys);
+        signatureWriter.close();
+        for (DataOutputStream out : bandKeys) {
+            out.close();
+        }
+        long signatureNanos = System.nanoTime() - startTime - reader.getReadNanos() - reader.getShingleNanos();
+        RunMetrics.recordStage("signature", signatureNanos, numDocs);
+        return bandFiles;
+    }
+
+    /**
+     * Get the key file of a band in a directory written by writeSignatureFiles.
+     */
+    public static File bandFile(File workDir, int band) {
+        return new File(workDir, "band_" + band + ".keys");
+    }
+
+    /**
+     * Process one band from its key file: sort the (bucket, document) records,
+     * and verify all pairs of documents that share a bucket against the mapped
+     * signatures.
+     *
+     * @param signatures the mapped signature file
+     * @param bandFile the key file of the band
+     * @param bandIndex index of the band
+     * @param shard only buckets in this shard are processed
+     * @param numShards number of shards the buckets are divided into (1 to process all buckets)
+     * @param threshold the similarity threshold
+     * @param sink receives the pairs above threshold
+     * @return the number of candidate pairs that were verified
+     */
+    public long processBandFile(SignatureFile signatures, File bandFile, int bandIndex, int shard, int numShards,
+                                double threshold, PairSink sink) throws IOException {
+        BandEvent event = new BandEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+
+        // Pack each record as (bucket << 32 | document) so that sorting groups the buckets
+        int numRecords = signatures.getNumDocs();
+        long[] keys = new long[numShards == 1 ? numRecords : numRecords / numShards + 1024];
+        int numDocs = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bandFile), 1 << 16));
+        for (int i = 0; i < numRecords; i++) {
+            int bucket = in.readInt();
+            int doc = in.readInt();
+            if (numShards > 1 && shardOf(bucket, numShards) != shard) {
+                continue;
+            }
+            if (numDocs == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length + keys.length / 2);
             }
+            keys[numDocs++] = ((long) bucket << 32) | (doc & 0xffffffffL);
+        }
+        in.close();
+        Arrays.sort(keys, 0, numDocs);
 
+        long bucketedTime = System.nanoTime();
+        long[] bucketSizes = RunMetrics.histogram("bucketSize");
+        short[] signature1 = new short[this.numHashes];
+        short[] signature2 = new short[this.numHashes];
+        long numBuckets = 0;
+        long numCandidates = 0;
+        long numVerified = 0;
+        int start = 0;
+        while (start < numDocs) {
+            // The bucket spans [start, end)
+            int end = start + 1;
+            while (end < numDocs && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+                end++;
+            }
+            numBuckets++;
+            RunMetrics.record(bucketSizes, end - start);
+            for (int i = start; i < end - 1; i++) {
+                int docId1 = (int) keys[i];
+                signatures.getSignature(docId1, signature1);
+                Set<Integer> set1 = arrayToSet(signature1);
+                for (int j = i + 1; j < end; j++) {
+                    int docId2 = (int) keys[j];
+                    signatures.getSignature(docId2, signature2);
+                    numCandidates++;
+                    double sim = jaccardSimilarity(set1, arrayToSet(signature2));
+                    if (sim > threshold) {
+                        numVerified++;
+                        sink.accept(docId1, docId2, sim);
+                    }
+                }
+            }
+            start = end;
+        }
+        RunMetrics.recordBand(bandIndex, bucketedTime - startTime, System.nanoTime() - bucketedTime, numDocs,
+                              numBuckets, numCandidates, numVerified);
+        event.band = bandIndex;
+        event.docs = numDocs;
+        event.buckets = numBuckets;
+        event.candidates = numCandidates;
+        event.verified = numVerified;
+        event.commit();
+        return numCandidates;
+    }
 
+    /**
+     * Get the lower size bounds b_i = (1 / threshold)^i of the size windows,
+     * up to the largest shingle set size of the documents.
+     * @param threshold the similarity threshold
+     * @param numDocs number of documents
+     * @return the bounds, starting with b_0 = 1
+     */
+    double[] sizeBounds(double threshold, int numDocs) {
+        int maxSize = 1;
+        for (int doc = 0; doc < numDocs; doc++) {
+            maxSize = Math.max(maxSize, reader.getDocSize(doc));
+        }
+        if (threshold <= 0 || threshold >= 1) {
+            // No geometric windows, a single window with all documents
+            return new double[] { 1 };
+        }
+        List<Double> bounds = new ArrayList<Double>();
+        for (double bound = 1; bound <= maxSize; bound /= threshold) {
+            bounds.add(bound);
+        }
+        RunMetrics.setParameter("sizeWindows", bounds.size());
+        return bounds.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    /**
+     * Get the index i of the size interval [b_i, b_(i+1)) of a shingle set size.
+     * Empty sets are counted as size 1.
+     */
+    static int sizeInterval(double[] sizeBounds, int size) {
+        int index = Arrays.binarySearch(sizeBounds, size);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * Get the shard that owns a bucket.
+     */
+    public static int shardOf(int bucket, int numShards) {
+        // Mix the bucket so that shards are balanced for any numBuckets
+        int h = bucket * 0x9e3779b9;
+        return Math.floorMod(h ^ (h >>> 16), numShards);
+    }
+
+    /**
+     * Read all documents of the reader and construct their signature matrix.
+     * @return the (numObjects x signatureRows()) signature matrix
+     */
+    public short[][] constructSignatureMatrix() {
+        // Seeded hash functions (used for constructing signature matrix)
+        long startTime = System.nanoTime();
+        HashFamily hashes = new HashFamily(this.numHashes, this.seed);
+        short[][] signatureMatrix = this.intSignatures ? Minhash.constructIntSignatureMatrix(this.reader, hashes)
+            : Minhash.constructSignatureMatrixOptimized(this.reader, hashes);
+        // Reading and shingling happen inside the signature loop, count them as separate stages
+        long signatureNanos = System.nanoTime() - startTime - reader.getReadNanos() - reader.getShingleNanos();
+        RunMetrics.recordStage("signature", signatureNanos, signatureMatrix.length);
+        return signatureMatrix;
+    }
+
+    /**
+     * Hash one band of the signature matrix into buckets and verify all
+     * candidate pairs that share a bucket.
+     *
+     * In the size partitioned mode the documents are split into overlapping
+     * size windows with geometric bounds b_i = (1 / threshold)^i: window j
+     * holds the documents with a shingle set size in [b_j, b_(j+2)). A
+     * document of size in [b_i, b_(i+1)) is inserted in windows i - 1 and i,
+     * and a pair with size ratio at least threshold is verified in the window
+     * of its smallest document only, so there is one hash table per window
+     * and every possible pair is verified once.
+     *
+     * @param signatureMatrix the (numObjects x numHashes) signature matrix
+     * @param bandIndex index of the band, the band covers rows [bandIndex * bandSize, (bandIndex + 1) * bandSize)
+     * @param bandSize number of signature rows in one band
+     * @param numBuckets number of buckets to hash the band signatures into
+     * @param threshold the similarity threshold
+     * @param sink receives the pairs above threshold
+     * @return the number of candidate pairs that were verified
+     */
+    public long processBand(short[][] signatureMatrix, int bandIndex, int bandSize, int numBuckets,
+                            double threshold, PairSink sink) {
+        return processBand(signatureMatrix, bandIndex, bandIndex * bandSize, bandSize, numBuckets, threshold, sink);
+    }
+
+    /**
+     * Hash the rows [startIndex, startIndex + bandSize) of the signature
+     * matrix into buckets and verify all candidate pairs that share a bucket,
+     * like processBand of a band that does not start at bandIndex * bandSize.
+     * @param bandIndex index of the band, used for the metrics only
+     * @param startIndex index of the first row of the band
+     */
+    public long processBand(short[][] signatureMatrix, int bandIndex, int startIndex, int bandSize, int numBuckets,
+                            double threshold, PairSink sink) {
+        BandEvent event = new BandEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+        // Size bounds of the windows, null without size partitioning
+        double[] sizeBounds = this.sizePartitioned ? sizeBounds(threshold, signatureMatrix.length) : null;
+        // Array that stores documents in buckets (used for identifying candidate pairs), one per window
+        LSHHashTable[] bucketsForBand = new LSHHashTable[sizeBounds == null ? 1 : sizeBounds.length];
+        // Scratch buffer for the bytes of the band signature
+        byte[] bandBytes = new byte[bandSize * Short.BYTES];
+        // Sketch of the keys seen once and seen twice, null without singleton filtering
+        long[][] sketch = this.singletonFilter ? countBandKeys(signatureMatrix, startIndex, bandSize, numBuckets, bandBytes) : null;
+        long numSingletons = 0;
+        // Iterate over each signature in the signature matrix
+        for(int docInternalId = 0 ; docInternalId < signatureMatrix.length ; docInternalId++){
+            // Hash the portion of the signature that corresponds with band
+            int hashedBand = Minhash.hashBand(signatureMatrix[docInternalId], startIndex, bandSize, this.seed, bandBytes);
+            // Retrieve bucket from hash of band signature
+            int bucket = hashedBand % numBuckets;
+            // Skip the documents whose key is certainly unique
+            if (sketch != null && !seenTwice(sketch, bucket)) {
+                numSingletons++;
+                continue;
+            }
+            // Place the internal document id in the bucket hashtable(s)
+            int window = sizeBounds == null ? 0 : sizeInterval(sizeBounds, reader.getDocSize(docInternalId));
+            for (int w = Math.max(window - 1, 0); w <= window; w++) {
+                if (bucketsForBand[w] == null) {
+                    bucketsForBand[w] = new LSHHashTable();
+                }
+                bucketsForBand[w].insert(bucket, docInternalId);
+            }
+        }
+
+        long bucketedTime = System.nanoTime();
+        long[] bucketSizes = RunMetrics.histogram("bucketSize");
+        long numTableBuckets = 0;
+        long numCandidates = 0;
+        long numVerified = 0;
+        long numSizeFiltered = 0;
+        long numFalsePositives = 0;
+        for (int window = 0; window < bucketsForBand.length; window++) {
+            if (bucketsForBand[window] == null) {
+                continue;
+            }
+            numTableBuckets += bucketsForBand[window].getAllBuckets().size();
+            if (sketch != null) {
+                // Documents that passed the sketch but are alone in their bucket, counted in
+                // their own window only and only if they are also alone in window - 1
+                for (Set<Integer> bucketForBand : bucketsForBand[window].getAllBuckets()) {
+                    if (bucketForBand.size() != 1) {
+                        continue;
+                    }
+                    int doc = bucketForBand.iterator().next();
+                    if (sizeBounds == null) {
+                        numFalsePositives++;
+                    } else if (sizeInterval(sizeBounds, reader.getDocSize(doc)) == window) {
+                        int bucket = Minhash.hashBand(signatureMatrix[doc], startIndex, bandSize, this.seed, bandBytes) % numBuckets;
+                        if (window == 0 || bucketsForBand[window - 1].getDocumentsInBucket(bucket).size() == 1) {
+                            numFalsePositives++;
+                        }
+                    }
+                }
+            }
             // Calculate all the candidate pairs from the bucket hashtable
-            for(Set<Integer> bucketForBand : bucketsForBand.getAllBuckets()){
+            for(Set<Integer> bucketForBand : bucketsForBand[window].getAllBuckets()){
                 // Create pairs of document IDs within the same bucket
                 List<Integer> bucketList = new ArrayList<>(bucketForBand);
                 int bucketSize = bucketList.size();
+                RunMetrics.record(bucketSizes, bucketSize);
                 for (int i = 0; i < bucketSize - 1; i++) {
                     int docId1 = bucketList.get(i);
                     for (int j = i + 1; j < bucketSize; j++) {
                         int docId2 = bucketList.get(j);
+                        if (sizeBounds != null) {
+                            int size1 = reader.getDocSize(docId1);
+                            int size2 = reader.getDocSize(docId2);
+                            // Verify the pair in the window of its smallest document only, then the length filter,
+                            // so that a pair of two overlapping windows is counted once
+                            if (sizeInterval(sizeBounds, Math.min(size1, size2)) != window) {
+                                continue;
+                            }
+                            if (Math.min(size1, size2) < threshold * Math.max(size1, size2)) {
+                                numSizeFiltered++;
+                                continue;
+                            }
+                        }
+                        numCandidates++;
                         // Calculate Jaccard similarity of candidate pair
-                        double sim = jaccardSimilarity(arrayToSet(signatureMatrix[docId1]), arrayToSet(signatureMatrix[docId2]));
+                        double sim = signatureSimilarity(signatureMatrix[docId1], signatureMatrix[docId2]);
                         if(sim > threshold){
-                            similarPairsAboveThreshold.add(new SimilarPair(reader.getExternalId(docId1), reader.getExternalId(docId2), sim));
+                            numVerified++;
+                            sink.accept(docId1, docId2, sim);
                         }
                     }
                 }
             }
-        }     
-        return similarPairsAboveThreshold;
+        }
+        RunMetrics.recordBand(bandIndex, bucketedTime - startTime, System.nanoTime() - bucketedTime, signatureMatrix.length,
+                              numTableBuckets, numCandidates, numVerified);
+        RunMetrics.add("sizeFiltered", numSizeFiltered);
+        if (sketch != null) {
+            long numPassed = signatureMatrix.length - numSingletons;
+            RunMetrics.add("singletonFiltered", numSingletons);
+            RunMetrics.add("singletonPassed", numPassed);
+            RunMetrics.add("singletonFalsePositives", numFalsePositives);
+            System.out.println("Stored " + numPassed + " of " + signatureMatrix.length + " documents, sketch false positive rate "
+                + (numSingletons + numFalsePositives > 0 ? (double) numFalsePositives / (numSingletons + numFalsePositives) : 0));
+        }
+        event.band = bandIndex;
+        event.docs = signatureMatrix.length;
+        event.buckets = numTableBuckets;
+        event.candidates = numCandidates;
+        event.verified = numVerified;
+        event.commit();
+        return numCandidates;
     }
  
+    /**
+     * First pass of the singleton filter: count the band keys of all
+     * documents in a sketch of SKETCH_HASHES positions per key, with a bitmap
+     * of the positions seen once and a bitmap of the positions seen twice.
+     * @return the two bitmaps {seenOnce, seenTwice}
+     */
+    long[][] countBandKeys(short[][] signatureMatrix, int startIndex, int bandSize, int numBuckets, byte[] bandBytes) {
+        long bits = Long.highestOneBit(Math.max(64, (long) signatureMatrix.length * SKETCH_BITS_PER_DOC - 1)) << 1;
+        long[][] sketch = new long[2][(int) (bits >>> 6)];
+        for (int doc = 0; doc < signatureMatrix.length; doc++) {
+            int bucket = Minhash.hashBand(signatureMatrix[doc], startIndex, bandSize, this.seed, bandBytes) % numBuckets;
+            for (int k = 0; k < SKETCH_HASHES; k++) {
+                long position = sketchPosition(bucket, k, bits);
+                int word = (int) (position >>> 6);
+                long mask = 1L << position;
+                if ((sketch[0][word] & mask) != 0) {
+                    sketch[1][word] |= mask;
+                } else {
+                    sketch[0][word] |= mask;
+                }
+            }
+        }
+        return sketch;
+    }
+
+    /**
+     * Check whether a key may have been counted at least twice. Keys that
+     * were counted twice always pass, unique keys pass when all their
+     * positions are shared with other keys (a false positive).
+     */
+    static boolean seenTwice(long[][] sketch, int bucket) {
+        long bits = (long) sketch[1].length << 6;
+        for (int k = 0; k < SKETCH_HASHES; k++) {
+            long position = sketchPosition(bucket, k, bits);
+            if ((sketch[1][(int) (position >>> 6)] & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get sketch position k of a key, in a sketch of a power of two bits.
+     */
+    private static long sketchPosition(int bucket, int k, long bits) {
+        long h = (bucket + (long) k * 0x9e3779b97f4a7c15L) * 0xbf58476d1ce4e5b9L;
+        return (h ^ (h >>> 31)) & (bits - 1);
+    }
+
+    /**
+     * Estimate the similarity of a candidate pair of processBand from their
+     * signatures: the Jaccard similarity of their sets of signature values.
+     */
+    double signatureSimilarity(short[] signature1, short[] signature2) {
+        if (this.intSignatures) {
+            return jaccardSimilarity(intArrayToSet(signature1), intArrayToSet(signature2));
+        }
+        return jaccardSimilarity(arrayToSet(signature1), arrayToSet(signature2));
+    }
+
+    /**
+     * Get the set of values of an int signature, see {@link HashFamily#intSignature}.
+     */
+    static Set<Integer> intArrayToSet(short[] arr) {
+        Set<Integer> set = new HashSet<>();
+        for (int i = 0; i < arr.length; i += 2) {
+            set.add((arr[i] << 16) | (arr[i + 1] & 0xffff));
+        }
+        return set;
+    }
+
     public static Set<Integer> arrayToSet(short[] arr) {
         Set<Integer> set = new HashSet<>();
         for (short i : arr) {
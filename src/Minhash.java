@@ -3,9 +3,9 @@
  * copy or distribute without permission. Written by Pieter Robberechts, 2023
  */
 
- import java.util.List;
-import java.util.Random;
-import java.util.Set;
+ import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 
 
 /**
@@ -13,150 +13,167 @@ import java.util.Set;
  */
 public final class Minhash {
 
+    // initial number of rows allocated for a signature matrix
+    static final int INITIAL_ROWS = 1 << 16;
+    // number of documents the signature builders read per batch
+    static final int BATCH_SIZE = 1024;
+
     private Minhash() {
     }
 
     /**
-     * Construct the table of hash values needed to construct the signature matrix.
-     * Position (i,j) contains the result of applying function j to row number i.
+     * OPTIMIZED MINHASH METHODS THAT USES SHORT DATA TYPES INSTEAD OF INT DATA TYPES
+     */
+
+    /**
+     * Construct the signature matrix (optimized version). The hash functions
+     * are evaluated on the fly, and the 15 most significant bits of every
+     * minimal hash value are kept.
      *
-     * @param numHashes  number of hashes that will be used in the signature matrix
-     * @param numValues  number of unique values that occur in the object set representations (i.e. number of rows of the characteristic matrix)
-     * @param seed       should be used to generate any random numbers needed
-     * @return the (numValues x numHashes) matrix of hash values
+     * @param reader     iterator returning the set representation of objects for which the signature matrix should be constructed
+     * @param hashes     the seeded hash functions
+     * @return the (numObjects x numHashes) signature matrix (short data type)
      */
-    public static int[][] constructHashTable(int numHashes, int numValues, int seed) {
-        int[][] hashes = new int[numValues][numHashes];
-
-        int primeN = Primes.findLeastPrimeNumber(numValues);
-
-        // Columns of the hash table
-        for (int j = 0; j < numHashes; j++) {
-            // Generate random 'a' and 'b' values
-            int a = new Random().nextInt();
-            int b = new Random().nextInt();
-            // Rows of the hash table
-            for (int i = 0; i < numValues; i++) {
-                // Universal hash: h_a,b(x) = ((a·x + b) mod p) mod N
-                int hashValue = Math.abs(((a * i + b) % primeN) % numValues);
-                hashes[i][j] = hashValue;
-            }
-        }
+    public static short[][] constructSignatureMatrixOptimized(Reader reader, HashFamily hashes) {
+        return constructSignatureMatrixOptimized(reader, hashes, BATCH_SIZE);
+    }
 
-        return hashes;
+    /**
+     * Construct the signature matrix (optimized version), reading the
+     * documents in batches of batchSize.
+     *
+     * @param reader     iterator returning the set representation of objects for which the signature matrix should be constructed
+     * @param hashes     the seeded hash functions
+     * @param batchSize  number of documents per batch
+     * @return the (numObjects x numHashes) signature matrix (short data type)
+     */
+    public static short[][] constructSignatureMatrixOptimized(Reader reader, HashFamily hashes, int batchSize) {
+        return constructSignatureMatrix(reader, hashes, batchSize, false);
     }
 
     /**
-     * Construct the signature matrix.
+     * Construct the signature matrix with the full 31-bit minimal hash values,
+     * for when the 15 bits of the optimized version collide too often. Every
+     * value takes two shorts, see {@link HashFamily#intSignature}, so a band
+     * of b hash functions covers 2 * b rows.
      *
      * @param reader     iterator returning the set representation of objects for which the signature matrix should be constructed
-     * @param hashValues (numValues x numHashes) matrix of hash values
-     * @return the (numHashes x numObjects) signature matrix
+     * @param hashes     the seeded hash functions
+     * @return the (numObjects x 2 * numHashes) signature matrix
      */
-    public static int[][] constructSignatureMatrix(Reader reader, int[][] hashValues) {
+    public static short[][] constructIntSignatureMatrix(Reader reader, HashFamily hashes) {
+        return constructSignatureMatrix(reader, hashes, BATCH_SIZE, true);
+    }
 
-        int numHashes = hashValues[0].length;
+    private static short[][] constructSignatureMatrix(Reader reader, HashFamily hashes, int batchSize, boolean intSignatures) {
+        int numHashes = hashes.getNumHashes();
         int numObjects = reader.maxDocs;
-
-        int[][] signatureMatrix = initializeSignatureMatrix(numHashes, numObjects);
-
-        // Streamline reading of documents
-        while (reader.hasNext()) {
-            Set<Integer> shingleDoc = reader.next();
-
-            // Iterate over shingle document
-            for (int rowIndex : shingleDoc) {
-                for (int i = 0; i < numHashes; i++) {
-                    if (hashValues[rowIndex][i] < signatureMatrix[reader.curDoc][i]) {
-                        signatureMatrix[reader.curDoc][i] = hashValues[rowIndex][i];
-                    }
+        int numRows = intSignatures ? 2 * numHashes : numHashes;
+
+        SignatureEvent event = new SignatureEvent();
+        event.begin();
+
+        // Rows are allocated as documents are read, the reader may hold fewer than maxDocs documents
+        short[][] signatureMatrix = new short[Math.min(numObjects, INITIAL_ROWS)][];
+        int[] scratch = new int[numHashes];
+
+        DocumentBatch batch = new DocumentBatch(batchSize);
+        while (reader.nextBatch(batch) > 0) {
+            int[] shingles = batch.getShingles();
+            for (int i = 0; i < batch.getSize(); i++) {
+                int doc = batch.getFirstDoc() + i;
+                if (doc == signatureMatrix.length) {
+                    signatureMatrix = Arrays.copyOf(signatureMatrix, (int) Math.min(numObjects, 2L * signatureMatrix.length));
+                }
+                signatureMatrix[doc] = new short[numRows];
+                if (intSignatures) {
+                    hashes.intSignature(shingles, batch.getStart(i), batch.getEnd(i), signatureMatrix[doc], scratch);
+                } else {
+                    hashes.signature(shingles, batch.getStart(i), batch.getEnd(i), signatureMatrix[doc], scratch);
                 }
             }
-
         }
 
-        return signatureMatrix;
-    }
-
-    private static int[][] initializeSignatureMatrix(int numHashes, int numObjects) {
-        int[][] signatureMatrixInit = new int[numObjects][numHashes];
-
-        for (int c = 0; c < numObjects; c++) {
-            for (int r = 0; r < numHashes; r++) {
-                signatureMatrixInit[c][r] = Integer.MAX_VALUE;
-            }
+        int numRead = reader.getDocsRead();
+        if (numRead < signatureMatrix.length) {
+            signatureMatrix = Arrays.copyOf(signatureMatrix, numRead);
         }
 
-        return signatureMatrixInit;
+        event.docs = numRead;
+        event.numHashes = numHashes;
+        event.numShingles = reader.getNumShingles();
+        event.commit();
+        return signatureMatrix;
     }
 
     /**
-     * OPTIMIZED MINHASH METHODS THAT USES SHORT DATA TYPES INSTEAD OF INT DATA TYPES
-     */
-
-    /**
-     * Construct the table of hash values needed to construct the signature matrix (optimized version).
-     * Position (i,j) contains the result of applying function j to row number i.
+     * Construct the signatures (optimized version) without keeping the signature
+     * matrix in memory. Each signature is appended to a signature file as soon as
+     * it is computed, and the bucket of each of its bands is appended to the key
+     * file of that band as an (int bucket, int internal id) record.
      *
-     * @param numHashes number of hashes that will be used in the signature matrix
-     * @param numValues number of unique values that occur in the object set representations (i.e. number of rows of the characteristic matrix)
-     * @param seed      should be used to generate any random numbers needed
-     * @return the (numValues x numHashes) matrix of hash values (short data type)
+     * @param reader     iterator returning the set representation of objects
+     * @param hashes     the seeded hash functions
+     * @param signatures writer of the signature file
+     * @param bandSize   number of signature rows in one band
+     * @param numBuckets number of buckets to hash the band signatures into
+     * @param seed       seed of the band hash
+     * @param bandKeys   one output stream per band receiving the band keys
+     * @return the number of documents
      */
-    public static short[][] constructHashTableOptimized(int numHashes, int numValues, int seed) {
-        short[][] hashes = new short[numValues][numHashes];
-
-        int primeN = Primes.findLeastPrimeNumber(numValues);
-
-        for (int j = 0; j < numHashes; j++) {
-            int a = new Random().nextInt();
-            int b = new Random().nextInt();
-            for (int i = 0; i < numValues; i++) {
-                int hashValue = Math.abs(((a * i + b) % primeN) % numValues);
-                hashes[i][j] = (short) hashValue;
+    public static int streamSignaturesOptimized(Reader reader, HashFamily hashes, SignatureFile.Writer signatures,
+                                                int bandSize, int numBuckets, int seed,
+                                                DataOutputStream[] bandKeys) throws IOException {
+        int numHashes = hashes.getNumHashes();
+
+        SignatureEvent event = new SignatureEvent();
+        event.begin();
+
+        short[] signature = new short[numHashes];
+        int[] scratch = new int[numHashes];
+        byte[] bandBytes = new byte[bandSize * Short.BYTES];
+        int numObjects = 0;
+        DocumentBatch batch = new DocumentBatch(BATCH_SIZE);
+        while (reader.nextBatch(batch) > 0) {
+            int[] shingles = batch.getShingles();
+            for (int i = 0; i < batch.getSize(); i++) {
+                int doc = batch.getFirstDoc() + i;
+                hashes.signature(shingles, batch.getStart(i), batch.getEnd(i), signature, scratch);
+
+                signatures.append(batch.getId(i), signature);
+                for (int band = 0; band < bandKeys.length; band++) {
+                    int bucket = hashBand(signature, band * bandSize, bandSize, seed, bandBytes) % numBuckets;
+                    bandKeys[band].writeInt(bucket);
+                    bandKeys[band].writeInt(doc);
+                }
+                numObjects++;
             }
         }
 
-        return hashes;
+        event.docs = numObjects;
+        event.numHashes = numHashes;
+        event.numShingles = reader.getNumShingles();
+        event.commit();
+        return numObjects;
     }
 
     /**
-     * Construct the signature matrix (optimized version).
+     * Hash one band of a signature. Equal to hashing the big-endian bytes of the
+     * band's signature values with MurmurHash.
      *
-     * @param reader     iterator returning the set representation of objects for which the signature matrix should be constructed
-     * @param hashValues (numValues x numHashes) matrix of hash values (short data type)
-     * @return the (numHashes x numObjects) signature matrix (short data type)
+     * @param signature the signature
+     * @param start     index of the first row of the band
+     * @param bandSize  number of rows in the band
+     * @param seed      seed of the hash
+     * @param buffer    scratch buffer of at least bandSize * 2 bytes
+     * @return the hash of the band
      */
-    public static short[][] constructSignatureMatrixOptimized(Reader reader, short[][] hashValues) {
-        int numHashes = hashValues[0].length;
-        int numObjects = reader.maxDocs;
-
-        short[][] signatureMatrix = initializeSignatureMatrixOptimized(numHashes, numObjects);
-
-        while (reader.hasNext()) {
-            Set<Integer> shingleDoc = reader.next();
-
-            for (int rowIndex : shingleDoc) {
-                for (int i = 0; i < numHashes; i++) {
-                    if (hashValues[rowIndex][i] < signatureMatrix[reader.curDoc][i]) {
-                        signatureMatrix[reader.curDoc][i] = hashValues[rowIndex][i];
-                    }
-                }
-            }
+    public static int hashBand(short[] signature, int start, int bandSize, int seed, byte[] buffer) {
+        for (int i = 0; i < bandSize; i++) {
+            short value = signature[start + i];
+            buffer[2 * i] = (byte) (value >> 8);
+            buffer[2 * i + 1] = (byte) value;
         }
-
-        return signatureMatrix;
-    }
-
-    private static short[][] initializeSignatureMatrixOptimized(int numHashes, int numObjects) {
-        short[][] signatureMatrixInit = new short[numObjects][numHashes];
-
-        for (int c = 0; c < numObjects; c++) {
-            for (int r = 0; r < numHashes; r++) {
-                signatureMatrixInit[c][r] = Short.MAX_VALUE;
-            }
-        }
-
-        return signatureMatrixInit;
+        return MurmurHash.hash32(buffer, bandSize * Short.BYTES, seed);
     }
 }
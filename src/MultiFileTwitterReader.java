@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads tweets from several plain or gzipped TSV files and constructs shingle
+ * representations for these tweets.
+ *
+ * The input is a single file, a directory (all .tsv and .tsv.gz files in it)
+ * or a glob such as "dumps/2023-*.tsv.gz". Files are decompressed, parsed and
+ * shingled concurrently by a pool of threads, one task per file, and handed
+ * over in batches through a bounded queue per file. Documents are returned in
+ * file name order and line order, so internal ids are stable across runs
+ * regardless of the number of threads.
+ *
+ * The read time of this reader is the time the consumer waits for batches;
+ * the shingle time is the time the file tasks spend decompressing, parsing
+ * and shingling, summed over all threads.
+ */
+public class MultiFileTwitterReader extends Reader {
+
+    // number of documents per batch handed over by a file task
+    static final int BATCH_SIZE = 1000;
+    // number of batches a file task may read ahead
+    static final int QUEUE_BATCHES = 16;
+
+    private List<File> files;
+    private int numThreads;
+
+    private ExecutorService executor;
+    private List<BlockingQueue<Batch>> queues;
+    private int curFile;
+    private Batch curBatch;
+    private int curInBatch;
+
+    /**
+     * Construct a reader over several files.
+     * @param maxDocs maximal number of documents to read.
+     * @param shingler a document shingler.
+     * @param path a file, a directory or a glob pattern
+     * @param numThreads number of files that are decompressed and shingled concurrently
+     */
+    public MultiFileTwitterReader(int maxDocs, Shingler shingler, String path, int numThreads) {
+        // Without a limit, all documents of all files are read
+        super(maxDocs > 0 ? maxDocs : Integer.MAX_VALUE, shingler);
+
+        this.files = resolveFiles(path);
+        this.numThreads = numThreads;
+        reset();
+    }
+
+    /**
+     * Check whether a path should be read with a MultiFileTwitterReader
+     * instead of a TwitterReader.
+     */
+    public static boolean isMultiFile(String path) {
+        return path.contains("*") || path.contains("?") || path.endsWith(".gz") || new File(path).isDirectory();
+    }
+
+    /**
+     * List the files denoted by a file, directory or glob, sorted by name.
+     */
+    public static List<File> resolveFiles(String path) {
+        File file = new File(path);
+        File[] matches;
+        if (file.isDirectory()) {
+            // Only the data files, not e.g. a .DS_Store
+            matches = file.listFiles(f -> f.isFile() && (f.getName().endsWith(".tsv") || f.getName().endsWith(".tsv.gz")));
+        } else if (path.contains("*") || path.contains("?")) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+            matches = dir.listFiles(f -> f.isFile() && matcher.matches(Paths.get(f.getName())));
+        } else {
+            matches = new File[] { file };
+        }
+        if (matches == null) {
+            matches = new File[0];
+        }
+        Arrays.sort(matches);
+        return new ArrayList<File>(Arrays.asList(matches));
+    }
+
+    /**
+     * Count the documents (lines) of a file, directory or glob without
+     * parsing them, stopping at limit.
+     * @param path a file, a directory or a glob pattern
+     * @param limit maximal number of documents to count
+     * @return the number of documents, at most limit
+     */
+    public static int countDocuments(String path, int limit) throws IOException {
+        return countDocuments(resolveFiles(path), limit);
+    }
+
+    /**
+     * Count the documents (lines) of the files of this reader without parsing
+     * them, at most getMaxDocs().
+     */
+    @Override
+    public int countDocuments() throws IOException {
+        return countDocuments(files, this.maxDocs);
+    }
+
+    private static int countDocuments(List<File> files, int limit) throws IOException {
+        int count = 0;
+        for (File file : files) {
+            BufferedReader br = open(file);
+            while (count < limit && br.readLine() != null) {
+                count++;
+            }
+            br.close();
+            if (count >= limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Open a plain or gzipped file for reading.
+     */
+    public static BufferedReader open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!super.hasNext()) {
+            // maxDocs reached, stop the file tasks that wait to hand over their batches
+            this.executor.shutdownNow();
+            return false;
+        }
+        if (!fetch()) {
+            // all files exhausted before maxDocs
+            endBatchEvent();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Set<Integer> next() {
+        if (!hasNext()) {
+            return null;
+        }
+        this.curDoc++;
+
+        if (curDoc % 100000 == 0) {
+            System.out.println("at doc " + curDoc);
+        }
+
+        this.documents.add(curBatch.ids[curInBatch]);
+        Set<Integer> shingle = curBatch.shingles.get(curInBatch);
+        curBatch.shingles.set(curInBatch, null);
+        curInBatch++;
+        documentRead(shingle.size());
+        return shingle;
+    }
+
+    /**
+     * Make sure the current batch has a document left, waiting for the file
+     * tasks if needed.
+     * @return false if all files are exhausted
+     */
+    private boolean fetch() {
+        long startTime = System.nanoTime();
+        try {
+            while (curBatch == null || curInBatch == curBatch.size) {
+                if (curFile == files.size()) {
+                    return false;
+                }
+                Batch batch = queues.get(curFile).take();
+                if (batch.error instanceof IOException) {
+                    throw new UncheckedIOException((IOException) batch.error);
+                } else if (batch.error instanceof RuntimeException) {
+                    throw (RuntimeException) batch.error;
+                } else if (batch.error != null) {
+                    throw new IllegalStateException("Failed to read " + files.get(curFile), batch.error);
+                }
+                if (batch.size == 0) {
+                    // end of the current file
+                    curFile++;
+                    continue;
+                }
+                curBatch = batch;
+                curInBatch = 0;
+                // Decompressing, parsing and shingling time of the file tasks
+                this.shingleNanos += batch.nanos;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            this.readNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        System.gc();
+        this.curDoc = -1;
+        clearDocuments();
+        this.readNanos = 0;
+        this.shingleNanos = 0;
+        this.shinglesRead = 0;
+        this.curFile = 0;
+        this.curBatch = null;
+        this.curInBatch = 0;
+
+        this.executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread t = new Thread(r, "reader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.queues = new ArrayList<BlockingQueue<Batch>>();
+        for (File file : files) {
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES);
+            queues.add(queue);
+            // Tasks start in file order, so the file the consumer waits for always has a thread
+            executor.submit(() -> readFile(file, queue));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Task that decompresses, parses and shingles one file into a queue of
+     * batches, followed by an empty batch.
+     */
+    private void readFile(File file, BlockingQueue<Batch> queue) {
+        BufferedReader br = null;
+        try {
+            br = open(file);
+            Batch batch = new Batch();
+            long startTime = System.nanoTime();
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] cols = line.split("\t", -1);
+                if (cols.length < 3) {
+                    continue;
+                }
+                batch.ids[batch.size] = Long.parseLong(cols[1]);
+                batch.shingles.add(this.shingler.shingle(cols[2]));
+                batch.size++;
+                if (batch.size == BATCH_SIZE) {
+                    batch.nanos = System.nanoTime() - startTime;
+                    queue.put(batch);
+                    batch = new Batch();
+                    startTime = System.nanoTime();
+                }
+            }
+            if (batch.size > 0) {
+                batch.nanos = System.nanoTime() - startTime;
+                queue.put(batch);
+            }
+            queue.put(new Batch());
+        } catch (InterruptedException e) {
+            // the reader was reset or stopped
+        } catch (Exception e) {
+            // I/O errors, but also malformed ids or shingler failures: the consumer waits for this file
+            Batch failed = new Batch();
+            failed.error = e;
+            try {
+                queue.put(failed);
+            } catch (InterruptedException interrupted) {
+                // the reader was reset
+            }
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the files read by this reader.
+     */
+    public List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * A batch of parsed and shingled documents of one file.
+     */
+    private static class Batch {
+        long[] ids = new long[BATCH_SIZE];
+        List<Set<Integer>> shingles = new ArrayList<Set<Integer>>(BATCH_SIZE);
+        int size;
+        // time spent reading and shingling the batch
+        long nanos;
+        // the failure of the file task, rethrown by the consumer
+        Exception error;
+    }
+}
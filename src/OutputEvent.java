@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the writing of the similar pairs to the
+ * output file.
+ *
+ * Disabled by default, enable it with +lsh.Output#enabled=true.
+ */
+@Name("lsh.Output")
+@Label("Output")
+@Category("LSH")
+@Description("Sorting and writing of the similar pairs")
+@Enabled(false)
+@StackTrace(false)
+public class OutputEvent extends jdk.jfr.Event {
+
+    @Label("Pairs")
+    long pairs;
+
+    @Label("Output File")
+    String file;
+}
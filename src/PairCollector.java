@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntToLongFunction;
+
+/**
+ * A PairSink that keeps the distinct similar pairs in memory in primitive
+ * arrays instead of a HashSet of SimilarPair objects.
+ *
+ * The external ids and the similarity of pair i are stored at index i of
+ * three parallel arrays (long, long, float): 20 bytes per pair, plus 4 to 8
+ * bytes for the open-addressing table used to drop duplicates, compared to
+ * roughly 80 bytes per pair for a SimilarPair in a HashSet. Duplicates are
+ * detected with SimilarPair.pairHash, so (a, b) and (b, a) are the same pair;
+ * the first similarity reported for a pair is kept.
+ *
+ * Pairs may be accepted concurrently by several threads. The pairs are
+ * sorted in place, most similar first, before they are read or written.
+ */
+public class PairCollector implements PairSink {
+
+    // maximal fill ratio of the open-addressing table
+    static final double MAX_LOAD = 0.5;
+
+    private IntToLongFunction externalIds;
+
+    private long[] ids1;
+    private long[] ids2;
+    private float[] sims;
+    private int size;
+
+    // index + 1 of the pair in every slot, 0 for an empty slot
+    private int[] table;
+    private int mask;
+
+    /**
+     * Construct a pair collector.
+     * @param externalIds maps internal document ids to external ids
+     * @param initialCapacity number of pairs to allocate room for
+     */
+    public PairCollector(IntToLongFunction externalIds, int initialCapacity) {
+        this.externalIds = externalIds;
+        int capacity = Math.max(initialCapacity, 16);
+        this.ids1 = new long[capacity];
+        this.ids2 = new long[capacity];
+        this.sims = new float[capacity];
+    }
+
+    @Override
+    public void accept(int doc1, int doc2, double sim) {
+        // Smallest internal id first, like ExternalPairSorter, so that both write the same lines
+        add(externalIds.applyAsLong(Math.min(doc1, doc2)), externalIds.applyAsLong(Math.max(doc1, doc2)), sim);
+    }
+
+    /**
+     * Add a pair given by its external ids, unless it was added before.
+     * @param id1 external id of the first document
+     * @param id2 external id of the second document
+     * @param sim their similarity
+     * @return true if the pair was not present yet
+     */
+    public synchronized boolean add(long id1, long id2, double sim) {
+        if (table == null || size + 1 > (mask + 1) * MAX_LOAD) {
+            rehash(size + 1);
+        }
+        int slot = (int) SimilarPair.pairHash(id1, id2) & mask;
+        while (table[slot] != 0) {
+            int i = table[slot] - 1;
+            if ((ids1[i] == id1 && ids2[i] == id2) || (ids1[i] == id2 && ids2[i] == id1)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == ids1.length) {
+            // Grow by half to limit the peak memory of the copy
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) ids1.length + (ids1.length >> 1));
+            ids1 = Arrays.copyOf(ids1, capacity);
+            ids2 = Arrays.copyOf(ids2, capacity);
+            sims = Arrays.copyOf(sims, capacity);
+        }
+        ids1[size] = id1;
+        ids2[size] = id2;
+        sims[size] = (float) sim;
+        size++;
+        table[slot] = size;
+        return true;
+    }
+
+    /**
+     * Rebuild the open-addressing table for at least minSize pairs.
+     */
+    private void rehash(int minSize) {
+        int capacity = Integer.highestOneBit((int) Math.min(1 << 30, (long) (minSize / MAX_LOAD))) << 1;
+        if (capacity < 0 || minSize > capacity * MAX_LOAD) {
+            throw new IllegalStateException("Too many pairs for a PairCollector: " + minSize);
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = (int) SimilarPair.pairHash(ids1[i], ids2[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Get the number of distinct pairs.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the first external id of pair i.
+     */
+    public long getId1(int i) {
+        return ids1[i];
+    }
+
+    /**
+     * Get the second external id of pair i.
+     */
+    public long getId2(int i) {
+        return ids2[i];
+    }
+
+    /**
+     * Get the similarity of pair i.
+     */
+    public float getSimilarity(int i) {
+        return sims[i];
+    }
+
+    /**
+     * Sort the pairs in place by decreasing similarity, then increasing ids.
+     * The duplicate table is dropped and rebuilt if more pairs are added.
+     */
+    public synchronized void sort() {
+        table = null;
+        sort(0, size - 1);
+    }
+
+    /**
+     * Sort the pairs and write them as TSV, most similar pairs first.
+     * @param outputFile the file to write the pairs to
+     * @return the number of pairs written
+     */
+    public synchronized long writeTsv(String outputFile) throws IOException {
+        sort();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), 1 << 16);
+        for (int i = 0; i < size; i++) {
+            bw.write(ids1[i] + "\t" + ids2[i] + "\t" + sims[i]);
+            bw.newLine();
+        }
+        bw.close();
+        return size;
+    }
+
+    /**
+     * Sort the pairs and write them as a binary PairFile, most similar pairs first.
+     * @param outputFile the file to write the pairs to
+     * @param params the run parameters stored in the header
+     * @return the number of pairs written
+     */
+    public synchronized long writePairFile(String outputFile, Map<String, String> params) throws IOException {
+        sort();
+        PairFile.Writer writer = PairFile.create(new File(outputFile), params);
+        for (int i = 0; i < size; i++) {
+            writer.append(ids1[i], ids2[i], sims[i]);
+        }
+        writer.close();
+        return size;
+    }
+
+    /**
+     * In-place quicksort of the parallel arrays on [lo, hi].
+     */
+    private void sort(int lo, int hi) {
+        while (lo < hi) {
+            if (hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    for (int j = i; j > lo && compare(j, ids1[j - 1], ids2[j - 1], sims[j - 1]) < 0; j--) {
+                        swap(j, j - 1);
+                    }
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            long pId1 = ids1[mid];
+            long pId2 = ids2[mid];
+            float pSim = sims[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(i, pId1, pId2, pSim) < 0) {
+                    i++;
+                }
+                while (compare(j, pId1, pId2, pSim) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller part, loop on the larger one
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private int compare(int i, long id1, long id2, float sim) {
+        return ExternalPairSorter.compare(ids1[i], ids2[i], sims[i], id1, id2, sim);
+    }
+
+    private void swap(int i, int j) {
+        long id1 = ids1[i];
+        ids1[i] = ids1[j];
+        ids1[j] = id1;
+        long id2 = ids2[i];
+        ids2[i] = ids2[j];
+        ids2[j] = id2;
+        float sim = sims[i];
+        sims[i] = sims[j];
+        sims[j] = sim;
+    }
+}
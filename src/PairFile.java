@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compact binary file of similar pairs, the binary counterpart of the TSV
+ * output of Runner.printPairs.
+ *
+ * Layout (big-endian):
+ *  - header: magic, version, the length of the run parameters and the run
+ *    parameters as UTF-8 "key=value" lines,
+ *  - blocks of at most BLOCK_PAIRS pairs: the number of pairs and the length
+ *    of the payload (ints), then per pair the zigzag varints of id1 minus the
+ *    previous id1, id2 minus id1 and the quantized similarity minus the
+ *    previous one; every block starts from zero so it decodes on its own,
+ *  - the block index: per block its offset (long), number of pairs (int) and
+ *    the similarity of its first pair (float),
+ *  - footer: the offset of the index (long), the number of blocks (int), the
+ *    number of pairs (long) and the magic.
+ * Similarities in [0, 1] are quantized to SIM_LEVELS + 1 levels, so a pair
+ * takes about 10 to 20 bytes instead of the 40 to 50 characters of a TSV
+ * line. Pairs are written in the order of the TSV output, most similar first,
+ * so the index can skip to the blocks above a similarity.
+ */
+public class PairFile {
+
+    static final int MAGIC = 0x4c534850; // "LSHP"
+    static final int VERSION = 1;
+    static final int FOOTER_BYTES = Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+    static final int BLOCK_HEADER_BYTES = 2 * Integer.BYTES;
+    static final int INDEX_ENTRY_BYTES = Long.BYTES + Integer.BYTES + Float.BYTES;
+    // number of pairs per block
+    static final int BLOCK_PAIRS = 4096;
+    // largest quantized similarity
+    static final int SIM_LEVELS = 65535;
+    // size of the channel buffer
+    static final int IO_BUFFER = 1 << 16;
+    // maximal encoded size of one pair: three varints
+    private static final int MAX_PAIR_BYTES = 3 * 10;
+
+    /**
+     * Create a new pair file.
+     * @param file the file to write
+     * @param params the run parameters stored in the header
+     * @return a writer that appends the pairs
+     */
+    public static Writer create(File file, Map<String, String> params) throws IOException {
+        return new Writer(file, params);
+    }
+
+    /**
+     * Open a pair file for streaming its pairs.
+     * @param file the file written by a {@link Writer}
+     * @return a reader positioned before the first pair
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Quantize a similarity in [0, 1].
+     */
+    static int quantize(double sim) {
+        return (int) Math.round(Math.max(0, Math.min(1, sim)) * SIM_LEVELS);
+    }
+
+    /**
+     * Appends pairs to a new pair file through a buffered file channel.
+     */
+    public static class Writer {
+        private FileChannel channel;
+        private ByteBuffer out = ByteBuffer.allocateDirect(IO_BUFFER);
+        // payload of the current block
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_PAIRS * MAX_PAIR_BYTES);
+        private int blockPairs;
+        private float blockFirstSim;
+        private long prevId1;
+        private int prevSim;
+        // bytes written to the channel or buffered in out
+        private long position;
+        private long numPairs;
+        private ByteBuffer index = ByteBuffer.allocate(64 * INDEX_ENTRY_BYTES);
+
+        private Writer(File file, Map<String, String> params) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                text.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            }
+            byte[] paramBytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            ensure(3 * Integer.BYTES);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(paramBytes.length);
+            position += 3 * Integer.BYTES;
+            put(paramBytes, paramBytes.length);
+        }
+
+        /**
+         * Append a pair. Pairs should be appended most similar first.
+         * @param id1 external id of the first document
+         * @param id2 external id of the second document
+         * @param sim their similarity
+         */
+        public void append(long id1, long id2, double sim) throws IOException {
+            int quantized = quantize(sim);
+            if (blockPairs == 0) {
+                blockFirstSim = (float) sim;
+            }
+            putVarLong(block, id1 - prevId1);
+            putVarLong(block, id2 - id1);
+            putVarLong(block, quantized - prevSim);
+            prevId1 = id1;
+            prevSim = quantized;
+            blockPairs++;
+            numPairs++;
+            if (blockPairs == BLOCK_PAIRS) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * Get the number of pairs appended so far.
+         */
+        public long getNumPairs() {
+            return numPairs;
+        }
+
+        /**
+         * Get the number of bytes written so far.
+         */
+        public long getBytes() {
+            return position;
+        }
+
+        /**
+         * Write the last block, the block index and the footer, and close the file.
+         */
+        public void close() throws IOException {
+            if (blockPairs > 0) {
+                flushBlock();
+            }
+            long indexOffset = position;
+            index.flip();
+            int numBlocks = index.remaining() / INDEX_ENTRY_BYTES;
+            put(index.array(), index.limit());
+            ensure(FOOTER_BYTES);
+            out.putLong(indexOffset);
+            out.putInt(numBlocks);
+            out.putLong(numPairs);
+            out.putInt(MAGIC);
+            position += FOOTER_BYTES;
+            drain();
+            channel.close();
+        }
+
+        private void flushBlock() throws IOException {
+            if (index.remaining() < INDEX_ENTRY_BYTES) {
+                ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                larger.put(index);
+                index = larger;
+            }
+            index.putLong(position);
+            index.putInt(blockPairs);
+            index.putFloat(blockFirstSim);
+
+            ensure(BLOCK_HEADER_BYTES);
+            out.putInt(blockPairs);
+            out.putInt(block.position());
+            position += BLOCK_HEADER_BYTES;
+            put(block.array(), block.position());
+
+            block.clear();
+            blockPairs = 0;
+            prevId1 = 0;
+            prevSim = 0;
+        }
+
+        private void put(byte[] bytes, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                if (!out.hasRemaining()) {
+                    drain();
+                }
+                int n = Math.min(out.remaining(), length - offset);
+                out.put(bytes, offset, n);
+                offset += n;
+            }
+            position += length;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (out.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+    }
+
+    /**
+     * Streams the pairs of a pair file, one block at a time.
+     */
+    public static class Reader {
+        private FileChannel channel;
+        private Map<String, String> params = new LinkedHashMap<String, String>();
+        private long numPairs;
+        private long[] blockOffsets;
+        private int[] blockPairs;
+        private float[] blockFirstSims;
+
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_PAIRS * MAX_PAIR_BYTES);
+        private ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        private int nextBlock;
+        private int remainingInBlock;
+        private long id1;
+        private long id2;
+        private int quantizedSim;
+
+        private Reader(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer footer = readAt(channel.size() - FOOTER_BYTES, FOOTER_BYTES);
+            long indexOffset = footer.getLong();
+            int numBlocks = footer.getInt();
+            this.numPairs = footer.getLong();
+            ByteBuffer header = readAt(0, 3 * Integer.BYTES);
+            if (footer.getInt() != MAGIC || header.getInt() != MAGIC) {
+                channel.close();
+                throw new IOException("Not a pair file: " + file);
+            }
+            if (header.getInt() != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported pair file version: " + file);
+            }
+            int paramLength = header.getInt();
+            String text = new String(readAt(3 * Integer.BYTES, paramLength).array(), StandardCharsets.UTF_8);
+            for (String line : text.split("\n")) {
+                int eq = line.indexOf('=');
+                if (eq > 0) {
+                    params.put(line.substring(0, eq), line.substring(eq + 1));
+                }
+            }
+
+            ByteBuffer index = readAt(indexOffset, numBlocks * INDEX_ENTRY_BYTES);
+            this.blockOffsets = new long[numBlocks];
+            this.blockPairs = new int[numBlocks];
+            this.blockFirstSims = new float[numBlocks];
+            for (int b = 0; b < numBlocks; b++) {
+                blockOffsets[b] = index.getLong();
+                blockPairs[b] = index.getInt();
+                blockFirstSims[b] = index.getFloat();
+            }
+        }
+
+        /**
+         * Get the run parameters stored in the header.
+         */
+        public Map<String, String> getParameters() {
+            return params;
+        }
+
+        /**
+         * Get the number of pairs in the file.
+         */
+        public long getNumPairs() {
+            return numPairs;
+        }
+
+        /**
+         * Get the number of blocks in the file.
+         */
+        public int getNumBlocks() {
+            return blockOffsets.length;
+        }
+
+        /**
+         * Get the similarity of the first, most similar, pair of a block.
+         */
+        public float getBlockSimilarity(int block) {
+            return blockFirstSims[block];
+        }
+
+        /**
+         * Continue streaming at the first pair of a block.
+         */
+        public void seekBlock(int block) {
+            nextBlock = block;
+            remainingInBlock = 0;
+        }
+
+        /**
+         * Advance to the next pair.
+         * @return false if there are no more pairs
+         */
+        public boolean next() throws IOException {
+            if (remainingInBlock == 0) {
+                if (nextBlock == blockOffsets.length) {
+                    return false;
+                }
+                loadBlock(nextBlock++);
+            }
+            id1 += getVarLong(block);
+            id2 = id1 + getVarLong(block);
+            quantizedSim += (int) getVarLong(block);
+            remainingInBlock--;
+            return true;
+        }
+
+        /**
+         * Get the first external id of the current pair.
+         */
+        public long getId1() {
+            return id1;
+        }
+
+        /**
+         * Get the second external id of the current pair.
+         */
+        public long getId2() {
+            return id2;
+        }
+
+        /**
+         * Get the (quantized) similarity of the current pair.
+         */
+        public float getSimilarity() {
+            return (float) quantizedSim / SIM_LEVELS;
+        }
+
+        /**
+         * Write the remaining pairs in the TSV format of Runner.printPairs.
+         * @param outputFile the file to write the pairs to
+         * @return the number of pairs written
+         */
+        public long writeTsv(String outputFile) throws IOException {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), IO_BUFFER);
+            long written = 0;
+            while (next()) {
+                bw.write(id1 + "\t" + id2 + "\t" + getSimilarity());
+                bw.newLine();
+                written++;
+            }
+            bw.close();
+            return written;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void loadBlock(int b) throws IOException {
+            blockHeader.clear();
+            readFully(blockHeader, blockOffsets[b]);
+            blockHeader.flip();
+            remainingInBlock = blockHeader.getInt();
+            int payload = blockHeader.getInt();
+            if (payload > block.capacity()) {
+                block = ByteBuffer.allocate(payload);
+            }
+            block.clear().limit(payload);
+            readFully(block, blockOffsets[b] + BLOCK_HEADER_BYTES);
+            block.flip();
+            id1 = 0;
+            quantizedSim = 0;
+        }
+
+        private ByteBuffer readAt(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(buffer, offset);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void readFully(ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Truncated pair file");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a zigzag varint: 7 bits per byte, small magnitudes first.
+     */
+    static void putVarLong(ByteBuffer buffer, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7fL) != 0) {
+            buffer.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    /**
+     * Read a zigzag varint written by {@link #putVarLong(ByteBuffer, long)}.
+     */
+    static long getVarLong(ByteBuffer buffer) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            v |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Stream a pair file back, report its read throughput and size, and
+     * optionally convert it to TSV.
+     *
+     * Usage: java PairFile pairs.bin [pairs.tsv]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java PairFile pairs.bin [pairs.tsv]");
+            return;
+        }
+        File file = new File(args[0]);
+        Reader reader = open(file);
+        System.out.println("Parameters: " + reader.getParameters());
+        long startTime = System.nanoTime();
+        long pairs = 0;
+        while (reader.next()) {
+            pairs++;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Read " + pairs + " pairs in " + reader.getNumBlocks() + " blocks (" + file.length()
+            + " bytes, " + (pairs > 0 ? (double) file.length() / pairs : 0) + " bytes per pair) in " + seconds
+            + " seconds, " + (seconds > 0 ? pairs / seconds : 0) + " pairs per second");
+
+        if (args.length > 1) {
+            reader.seekBlock(0);
+            startTime = System.nanoTime();
+            long written = reader.writeTsv(args[1]);
+            seconds = (System.nanoTime() - startTime) / 1e9;
+            long tsvBytes = new File(args[1]).length();
+            System.out.println("Converted " + written + " pairs to '" + args[1] + "' (" + tsvBytes + " bytes, "
+                + (file.length() > 0 ? (double) tsvBytes / file.length() : 0) + "x the binary size) in " + seconds + " seconds");
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+/**
+ * Receives the similar pairs found by a SimilaritySearcher as soon as they
+ * are verified. Pairs are given by the internal ids of the documents; the
+ * same pair may be reported more than once (e.g. once per LSH band).
+ */
+@FunctionalInterface
+public interface PairSink {
+
+    /**
+     * Accept a similar pair.
+     * @param doc1 internal id of the first document
+     * @param doc2 internal id of the second document
+     * @param sim their similarity
+     */
+    void accept(int doc1, int doc2, double sim);
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates a grid of LSH configurations (bands, rows, buckets) in a single
+ * JVM. The signature matrix is computed once and reused for every
+ * configuration. Each configuration is compared against the pairs found by an
+ * exact searcher on a sample of the documents (the first documents of the
+ * data file), and one CSV line is written per configuration.
+ */
+public class ParameterSweep {
+
+    private Reader reader;
+    private Reader sampleReader;
+    private String dataFile;
+    private int numHashes;
+    private int seed;
+
+    /**
+     * Construct a parameter sweep.
+     * @param reader reader over all documents that are searched with LSH
+     * @param sampleReader reader over the sampled subset used for the ground truth
+     * @param dataFile the file, directory or glob both readers read
+     * @param numHashes number of hashes in the signature matrix
+     * @param seed seed for the hash functions
+     */
+    public ParameterSweep(Reader reader, Reader sampleReader, String dataFile, int numHashes, int seed) {
+        this.reader = reader;
+        this.sampleReader = sampleReader;
+        this.dataFile = dataFile;
+        this.numHashes = numHashes;
+        this.seed = seed;
+    }
+
+    /**
+     * Run the sweep and write the results to a CSV file.
+     * @param threshold the similarity threshold
+     * @param bands the numbers of bands to evaluate
+     * @param rows the numbers of rows per band to evaluate, or null to use numHashes / bands
+     * @param buckets the numbers of buckets to evaluate
+     * @param groundTruthFile file with the exact pairs of the sample; computed and written when it does not exist
+     * @param csvFile the file to write the results to
+     */
+    public void run(double threshold, int[] bands, int[] rows, int[] buckets,
+                    String groundTruthFile, String csvFile) throws IOException {
+        Set<SimilarPair> truth = loadGroundTruth(threshold, groundTruthFile);
+
+        System.out.println("Constructing signature matrix...");
+        LSHOptimized lsh = new LSHOptimized(reader, numHashes, 1, 1, seed);
+        short[][] signatureMatrix = lsh.constructSignatureMatrix();
+
+        // External ids of the sampled documents, used to restrict the LSH pairs to the sample
+        Set<Long> sampleIds = new HashSet<Long>();
+        int sampleSize = Math.min(sampleReader.getMaxDocs(), reader.documents.size());
+        for (int doc = 0; doc < sampleSize; doc++) {
+            sampleIds.add(reader.getExternalId(doc));
+        }
+
+        BufferedWriter bw = new BufferedWriter(new FileWriter(csvFile));
+        bw.write("bands,rows,buckets,seconds,candidates,pairs,sample_pairs,truth_pairs,true_positives,precision,recall,peak_heap_mb");
+        bw.newLine();
+
+        for (int numBands : bands) {
+            int[] rowChoices = rows != null ? rows : new int[] { numHashes / numBands };
+            for (int bandSize : rowChoices) {
+                if (bandSize < 1 || numBands * bandSize > numHashes) {
+                    System.out.println("Skipping " + numBands + " bands x " + bandSize + " rows: needs more than " + numHashes + " hashes");
+                    continue;
+                }
+                for (int numBuckets : buckets) {
+                    System.out.println("Evaluating " + numBands + " bands x " + bandSize + " rows, " + numBuckets + " buckets");
+                    System.gc();
+                    resetPeakHeap();
+
+                    long startTime = System.nanoTime();
+                    Set<SimilarPair> pairs = new HashSet<SimilarPair>();
+                    long candidates = 0;
+                    for (int bandIndex = 0; bandIndex < numBands; bandIndex++) {
+                        candidates += lsh.processBand(signatureMatrix, bandIndex, bandSize, numBuckets, threshold,
+                            (doc1, doc2, sim) -> pairs.add(SimilarPair.of(reader.documents, doc1, doc2, sim)));
+                    }
+                    double seconds = (System.nanoTime() - startTime) / 1e9;
+                    long peakHeap = getPeakHeap();
+
+                    long samplePairs = 0;
+                    long truePositives = 0;
+                    for (SimilarPair p : pairs) {
+                        if (sampleIds.contains(p.getId1()) && sampleIds.contains(p.getId2())) {
+                            samplePairs++;
+                            if (truth.contains(p)) {
+                                truePositives++;
+                            }
+                        }
+                    }
+                    double precision = samplePairs > 0 ? (double) truePositives / samplePairs : 1.0;
+                    double recall = truth.size() > 0 ? (double) truePositives / truth.size() : 1.0;
+
+                    bw.write(numBands + "," + bandSize + "," + numBuckets + "," + seconds + "," + candidates + ","
+                            + pairs.size() + "," + samplePairs + "," + truth.size() + "," + truePositives + ","
+                            + precision + "," + recall + "," + (peakHeap / (1024 * 1024)));
+                    bw.newLine();
+                    bw.flush();
+                }
+            }
+        }
+        bw.close();
+        System.out.println("Sweep results saved to '" + csvFile + "'");
+    }
+
+    /**
+     * Load the exact pairs of the sample, or compute them with a brute force
+     * search and save them when the ground truth file does not exist yet or
+     * was computed with other parameters. The first line of the file records
+     * the parameters the pairs depend on.
+     */
+    private Set<SimilarPair> loadGroundTruth(double threshold, String groundTruthFile) throws IOException {
+        File file = new File(groundTruthFile);
+        String header = groundTruthHeader(threshold);
+        if (file.exists()) {
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            String line = br.readLine();
+            if (header.equals(line)) {
+                System.out.println("Loading ground truth from '" + groundTruthFile + "'");
+                Set<SimilarPair> truth = new HashSet<SimilarPair>();
+                while ((line = br.readLine()) != null) {
+                    String[] cols = line.split("\t");
+                    truth.add(new SimilarPair(Long.parseLong(cols[0]), Long.parseLong(cols[1]), Double.parseDouble(cols[2])));
+                }
+                br.close();
+                return truth;
+            }
+            br.close();
+            System.out.println("Ground truth in '" + groundTruthFile + "' was computed with other parameters ("
+                + line + "), recomputing");
+        }
+
+        System.out.println("Computing ground truth on " + sampleReader.getMaxDocs() + " documents...");
+        Set<SimilarPair> truth = new BruteForceSearch(sampleReader).getSimilarPairsAboveThreshold(threshold);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        bw.write(header);
+        bw.newLine();
+        for (SimilarPair p : truth) {
+            bw.write(p.getId1() + "\t" + p.getId2() + "\t" + p.getSimilarity());
+            bw.newLine();
+        }
+        bw.close();
+        System.out.println("Saved " + truth.size() + " ground truth pairs to '" + groundTruthFile + "'");
+        return truth;
+    }
+
+    /**
+     * Get the first line of a ground truth file: the parameters its pairs
+     * depend on.
+     */
+    private String groundTruthHeader(double threshold) throws IOException {
+        Shingler shingler = sampleReader.shingler;
+        return "# threshold=" + threshold + " sampleSize=" + sampleReader.getMaxDocs()
+            + " shingleLength=" + shingler.getShingleLength() + " numShingles=" + shingler.getNumShingles()
+            + " seed=" + shingler.getSeed() + " dataFile=" + new File(dataFile).getAbsolutePath()
+            + " sampleIds=" + sampleIdRange();
+    }
+
+    /**
+     * Get the external ids of the first and the last document of the sample,
+     * as "first-last", read from the data file without shingling. Lines
+     * with fewer than three columns are skipped, like MultiFileTwitterReader does.
+     */
+    private String sampleIdRange() throws IOException {
+        String first = "";
+        String last = "";
+        int count = 0;
+        for (File file : MultiFileTwitterReader.resolveFiles(dataFile)) {
+            BufferedReader br = MultiFileTwitterReader.open(file);
+            String line;
+            while (count < sampleReader.getMaxDocs() && (line = br.readLine()) != null) {
+                String[] cols = line.split("\t", 3);
+                if (cols.length < 3) {
+                    continue;
+                }
+                if (count == 0) {
+                    first = cols[1];
+                }
+                last = cols[1];
+                count++;
+            }
+            br.close();
+            if (count >= sampleReader.getMaxDocs()) {
+                break;
+            }
+        }
+        return first + "-" + last;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>(ManagementFactory.getMemoryPoolMXBeans());
+        pools.removeIf(pool -> pool.getType() != MemoryType.HEAP);
+        return pools;
+    }
+
+    /**
+     * Parse a comma separated list of integers.
+     * @param list the list, e.g. "1,2,4"
+     * @return the parsed integers
+     */
+    public static int[] parseIntList(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
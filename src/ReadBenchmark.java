@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Measures the reading and shingling throughput of the input files.
+ *
+ * Three strategies are compared:
+ *  - parallel: a MultiFileTwitterReader with numThreads threads,
+ *  - sequential: a MultiFileTwitterReader with a single thread,
+ *  - decompress-then-read: first decompress all gzipped files to plain
+ *    files, then read those with a single thread (the old workflow).
+ *
+ * runBatches instead compares reading and minhashing one document at a time
+ * with reading batches of several sizes into a {@link DocumentBatch}. Both
+ * paths are warmed up before anything is timed, and every measurement is
+ * repeated RUNS times; the best run is recorded.
+ */
+public final class ReadBenchmark {
+
+    // untimed passes over the documents of runBatches, for the JIT
+    static final int WARM_UP_RUNS = 2;
+    // timed passes per measurement of runBatches
+    static final int RUNS = 5;
+
+    private ReadBenchmark() {
+    }
+
+    /**
+     * Run the benchmark and print the throughput of every strategy.
+     * @param path a file, a directory or a glob pattern
+     * @param maxDocs maximal number of documents to read
+     * @param shingler a document shingler
+     * @param numThreads number of threads of the parallel strategy
+     * @param tmpDir directory for the decompressed files
+     */
+    public static void run(String path, int maxDocs, Shingler shingler, int numThreads, File tmpDir) throws IOException {
+        List<File> files = MultiFileTwitterReader.resolveFiles(path);
+        System.out.println("Reading " + files.size() + " files");
+
+        // Warm up the JIT so that the first strategy is not penalized
+        Reader warmUp = new MultiFileTwitterReader(maxDocs, shingler, path, 1);
+        while (warmUp.hasNext()) {
+            warmUp.next();
+        }
+
+        time("parallel (" + numThreads + " threads)", new MultiFileTwitterReader(maxDocs, shingler, path, numThreads), 0);
+        time("sequential", new MultiFileTwitterReader(maxDocs, shingler, path, 1), 0);
+
+        // Decompress all files first, as we did before gzip support
+        long startTime = System.nanoTime();
+        File plainDir = Files.createTempDirectory(tmpDir.toPath(), "plain").toFile();
+        for (File file : files) {
+            String name = file.getName().endsWith(".gz")
+                ? file.getName().substring(0, file.getName().length() - 3) : file.getName();
+            BufferedReader br = MultiFileTwitterReader.open(file);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(plainDir, name)), StandardCharsets.UTF_8), 1 << 16);
+            String line;
+            while ((line = br.readLine()) != null) {
+                bw.write(line);
+                bw.newLine();
+            }
+            br.close();
+            bw.close();
+        }
+        long decompressNanos = System.nanoTime() - startTime;
+        time("decompress-then-read", new MultiFileTwitterReader(maxDocs, shingler, plainDir.getPath(), 1), decompressNanos);
+
+        for (File plain : plainDir.listFiles()) {
+            plain.delete();
+        }
+        plainDir.delete();
+    }
+
+    /**
+     * Read, shingle and minhash all documents one at a time with next(), and
+     * then in batches of every batch size, and print the throughput of each.
+     * @param path the TSV file to read
+     * @param maxDocs maximal number of documents to read
+     * @param shingler a document shingler
+     * @param batchSizes the batch sizes to compare
+     * @param numHashes number of hash functions of the signatures
+     * @param seed seed of the hash functions
+     */
+    public static void runBatches(String path, int maxDocs, Shingler shingler, int[] batchSizes, int numHashes, int seed) {
+        HashFamily hashes = new HashFamily(numHashes, seed);
+        Reader reader = new TwitterReader(maxDocs, shingler, path);
+
+        // Warm up the JIT on both paths before anything is timed
+        for (int run = 0; run < WARM_UP_RUNS; run++) {
+            reader.reset();
+            minhashNext(reader, hashes);
+            for (int batchSize : batchSizes) {
+                reader.reset();
+                Minhash.constructSignatureMatrixOptimized(reader, hashes, batchSize);
+            }
+        }
+
+        measure("next", reader, hashes, 0);
+        for (int batchSize : batchSizes) {
+            measure("batch " + batchSize, reader, hashes, batchSize);
+        }
+    }
+
+    /**
+     * Time RUNS passes over the documents of a reader, print every run and
+     * record the best one.
+     * @param batchSize the batch size, 0 to minhash one document at a time with next()
+     */
+    private static void measure(String name, Reader reader, HashFamily hashes, int batchSize) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            reader.reset();
+            long startTime = System.nanoTime();
+            if (batchSize == 0) {
+                minhashNext(reader, hashes);
+            } else {
+                Minhash.constructSignatureMatrixOptimized(reader, hashes, batchSize);
+            }
+            long nanos = System.nanoTime() - startTime;
+            report(name + " (run " + (run + 1) + ")", reader, nanos);
+            best = Math.min(best, nanos);
+        }
+        int docs = reader.getDocsRead();
+        System.out.println(name + ": best of " + RUNS + " runs " + best / 1e9 + " seconds, "
+            + (long) (docs / (best / 1e9)) + " documents/second");
+        RunMetrics.recordStage("read." + name, best, docs);
+    }
+
+    /**
+     * Minhash all documents of a reader one at a time with next().
+     */
+    private static void minhashNext(Reader reader, HashFamily hashes) {
+        short[] signature = new short[hashes.getNumHashes()];
+        int[] scratch = new int[hashes.getNumHashes()];
+        while (reader.hasNext()) {
+            hashes.signature(reader.next(), signature, scratch);
+        }
+    }
+
+    /**
+     * Print the throughput of reading and minhashing the documents of a reader.
+     */
+    private static void report(String name, Reader reader, long nanos) {
+        double seconds = nanos / 1e9;
+        int docs = reader.getDocsRead();
+        System.out.println(name + ": " + docs + " documents in " + seconds + " seconds, " + (long) (docs / seconds)
+            + " documents/second (read " + reader.getReadNanos() / 1e9 + " s, shingle " + reader.getShingleNanos() / 1e9
+            + " s, minhash " + (nanos - reader.getReadNanos() - reader.getShingleNanos()) / 1e9 + " s)");
+    }
+
+    /**
+     * Read and shingle all documents of a reader and print the throughput.
+     */
+    private static void time(String name, Reader reader, long extraNanos) {
+        long startTime = System.nanoTime();
+        long shingles = 0;
+        while (reader.hasNext()) {
+            shingles += reader.next().size();
+        }
+        double seconds = (System.nanoTime() - startTime + extraNanos) / 1e9;
+        int docs = reader.getDocsRead();
+        System.out.println(name + ": " + docs + " documents (" + shingles + " shingles) in " + seconds
+            + " seconds, " + (long) (docs / seconds) + " documents/second");
+        RunMetrics.recordStage("read." + name, (long) (seconds * 1e9), docs);
+    }
+}
@@ -2,7 +2,9 @@
  * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
  * copy or distribute without permission. Written by Pieter Robberechts, 2023
  */
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -16,10 +18,24 @@ public abstract class Reader {
     public Shingler shingler;
     // max number of docs to read
     protected int maxDocs;
-    // maps each doc's internal id to its external id
-    public List<Long> idToDoc = new ArrayList<Long>();
+    // maps each doc's internal id to its external id and back
+    public DocumentRegistry documents = new DocumentRegistry(1024);
     // number of docs read
     protected int curDoc;
+    // time spent reading and parsing documents, in nanoseconds
+    protected long readNanos;
+    // time spent shingling documents, in nanoseconds
+    protected long shingleNanos;
+    // total size of the shingle sets that were read
+    protected long shinglesRead;
+    // size of the shingle set of every document read, docSizes[i] of internal id firstSize + i
+    private int[] docSizes = new int[1024];
+    // internal id of docSizes[0], see dropIdsBefore
+    private int firstSize;
+    // flight recorder event of the current batch of documents, and the read and shingle time when the previous one ended
+    private ReaderBatchEvent batchEvent;
+    private long batchReadNanos;
+    private long batchShingleNanos;
 
     /**
      * Construct a new document reader.
@@ -38,6 +54,23 @@ public abstract class Reader {
      */
     abstract public Set<Integer> next();
 
+    /**
+     * Read the next documents into a batch, at most its capacity. The first
+     * document of the batch gets internal id getDocsRead() before the call.
+     * This implementation fills the batch from next(), readers can override
+     * it to shingle directly into the batch.
+     * @param batch the batch to fill, its previous documents are removed
+     * @return the number of documents read, 0 if there are no more documents
+     */
+    public int nextBatch(DocumentBatch batch) {
+        batch.clear(this.curDoc + 1);
+        while (!batch.isFull() && this.hasNext()) {
+            Set<Integer> shingles = this.next();
+            batch.addDocument(this.getExternalId(this.curDoc), shingles);
+        }
+        return batch.getSize();
+    }
+
     /**
      * Reset this reader.
      */
@@ -80,10 +113,140 @@ public abstract class Reader {
         return this.maxDocs;
     }
 
+    /**
+     * Count the documents this reader will return, at most getMaxDocs(). This
+     * implementation returns getMaxDocs(), readers that may have no document
+     * limit count their input.
+     * @return the number of documents
+     */
+    public int countDocuments() throws IOException {
+        return this.maxDocs;
+    }
+
+    /**
+     * Account for a document that was just read as document curDoc: counts its
+     * shingles and emits a flight recorder event per batch of documents.
+     * @param numShingles size of the shingle set of the document
+     */
+    protected void documentRead(int numShingles) {
+        this.shinglesRead += numShingles;
+        int index = this.curDoc - this.firstSize;
+        if (index >= this.docSizes.length) {
+            this.docSizes = Arrays.copyOf(this.docSizes, Math.max(index + 1, this.docSizes.length * 2));
+        }
+        this.docSizes[index] = numShingles;
+
+        if (this.batchEvent == null) {
+            this.batchEvent = new ReaderBatchEvent();
+            this.batchEvent.begin();
+            this.batchEvent.firstDoc = this.curDoc;
+        }
+        this.batchEvent.docs++;
+        this.batchEvent.shingles += numShingles;
+        if (this.batchEvent.docs == ReaderBatchEvent.BATCH_SIZE || this.curDoc == this.maxDocs - 1) {
+            endBatchEvent();
+        }
+    }
+
+    /**
+     * Commit the flight recorder event of the current batch of documents, if
+     * any, with the read and shingle time spent since the previous event.
+     * Readers call it when their input ends before maxDocs; a reset calls it
+     * as well.
+     */
+    protected void endBatchEvent() {
+        if (this.batchEvent == null) {
+            return;
+        }
+        this.batchEvent.readTime = this.readNanos - this.batchReadNanos;
+        this.batchEvent.shingleTime = this.shingleNanos - this.batchShingleNanos;
+        this.batchEvent.commit();
+        this.batchEvent = null;
+        this.batchReadNanos = this.readNanos;
+        this.batchShingleNanos = this.shingleNanos;
+    }
+
+    /**
+     * Get the number of documents read since the last reset.
+     * @return the number of documents read
+     */
+    public int getDocsRead() {
+        return Math.min(this.curDoc + 1, this.maxDocs);
+    }
+
+    /**
+     * Get the size of the shingle set of a document that was read.
+     * @param doc internal id of the document
+     * @return the number of shingles of the document
+     */
+    public int getDocSize(int doc) {
+        return this.docSizes[doc - this.firstSize];
+    }
+
+    /**
+     * Get the time spent reading and parsing documents since the last reset.
+     * @return the time in nanoseconds
+     */
+    public long getReadNanos() {
+        return this.readNanos;
+    }
+
+    /**
+     * Get the time spent shingling documents since the last reset.
+     * @return the time in nanoseconds
+     */
+    public long getShingleNanos() {
+        return this.shingleNanos;
+    }
+
+    /**
+     * Get the total size of the shingle sets read since the last reset.
+     * @return the number of shingles
+     */
+    public long getShinglesRead() {
+        return this.shinglesRead;
+    }
+
     /**
      * Map an internal id to an external id.
      */
     public long getExternalId(int id) {
-        return this.idToDoc.get(id);
+        return this.documents.getId(id);
+    }
+
+    /**
+     * Map an external id to an internal id.
+     * @return the internal id, or -1 for an unknown document
+     */
+    public int getInternalId(long externalId) {
+        return this.documents.getInternalId(externalId);
+    }
+
+    /**
+     * Forget the external ids and sizes of the documents before doc, so that
+     * a reader that streams over many documents keeps a bounded number of
+     * them. Their external ids and sizes can no longer be looked up.
+     * @param doc internal id of the first document whose external id is kept
+     */
+    public void dropIdsBefore(int doc) {
+        this.documents.dropBefore(doc);
+        int kept = this.curDoc + 1 - this.firstSize;
+        int drop = Math.min(doc - this.firstSize, kept);
+        if (drop > 0) {
+            System.arraycopy(this.docSizes, drop, this.docSizes, 0, kept - drop);
+            this.firstSize += drop;
+        }
+    }
+
+    /**
+     * Forget all documents that were read, for a reset.
+     */
+    protected void clearDocuments() {
+        endBatchEvent();
+        // the readers restart their read and shingle time at zero
+        this.batchReadNanos = 0;
+        this.batchShingleNanos = 0;
+        this.documents.clear();
+        this.firstSize = 0;
     }
 }
@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event of the reading and shingling of one batch of
+ * documents by a Reader. The event spans from the first to the last document
+ * of the batch, including the time the consumer spends in between; the read
+ * and shingle time fields hold the time of the reader's own work, summed over
+ * its threads for a MultiFileTwitterReader.
+ *
+ * Disabled by default, enable it with e.g.
+ *  java -XX:StartFlightRecording:filename=run.jfr,+lsh.ReaderBatch#enabled=true Runner ...
+ */
+@Name("lsh.ReaderBatch")
+@Label("Reader Batch")
+@Category("LSH")
+@Description("Reading and shingling of a batch of documents")
+@Enabled(false)
+@StackTrace(false)
+public class ReaderBatchEvent extends jdk.jfr.Event {
+
+    // number of documents per event
+    public static final int BATCH_SIZE = 10000;
+
+    @Label("First Document")
+    int firstDoc;
+
+    @Label("Documents")
+    int docs;
+
+    @Label("Shingles")
+    long shingles;
+
+    @Label("Read Time")
+    @Description("Time spent reading and parsing the documents")
+    @Timespan(Timespan.NANOSECONDS)
+    long readTime;
+
+    @Label("Shingle Time")
+    @Description("Time spent shingling the documents")
+    @Timespan(Timespan.NANOSECONDS)
+    long shingleTime;
+}
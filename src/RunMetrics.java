@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the metrics of one run (stage timings, counters, histograms and
+ * per-band statistics) and writes them as a JSON report.
+ *
+ * All methods are static so that the static Minhash helpers and the
+ * searchers can record metrics without passing a collector around. Hot loops
+ * should accumulate in local variables and record once per stage or band.
+ */
+public final class RunMetrics {
+
+    // stage name -> {nanos, items}
+    private static final Map<String, long[]> stages = new LinkedHashMap<String, long[]>();
+    // counter name -> value
+    private static final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    // histogram name -> counts per power-of-two bin
+    private static final Map<String, long[]> histograms = new LinkedHashMap<String, long[]>();
+    // free-form run parameters
+    private static final Map<String, String> parameters = new LinkedHashMap<String, String>();
+    // per band: {band, bucketingNanos, verificationNanos, buckets, candidates, verified}
+    private static final List<long[]> bands = new ArrayList<long[]>();
+
+    private static long startTime = System.nanoTime();
+
+    private RunMetrics() {
+    }
+
+    /**
+     * Clear all metrics and restart the run clock.
+     */
+    public static synchronized void reset() {
+        stages.clear();
+        counters.clear();
+        histograms.clear();
+        parameters.clear();
+        bands.clear();
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Record a run parameter that is copied into the report.
+     */
+    public static synchronized void setParameter(String name, Object value) {
+        parameters.put(name, String.valueOf(value));
+    }
+
+    /**
+     * Get a copy of the run parameters recorded so far.
+     */
+    public static synchronized Map<String, String> getParameters() {
+        return new LinkedHashMap<String, String>(parameters);
+    }
+
+    /**
+     * Add the time spent in a stage and the number of items it processed.
+     * Repeated calls for the same stage are summed.
+     * @param name name of the stage
+     * @param nanos time spent in nanoseconds
+     * @param items number of items processed (used for the throughput)
+     */
+    public static synchronized void recordStage(String name, long nanos, long items) {
+        long[] stage = stages.get(name);
+        if (stage == null) {
+            stage = new long[2];
+            stages.put(name, stage);
+        }
+        stage[0] += nanos;
+        stage[1] += items;
+    }
+
+    /**
+     * Add a value to a counter.
+     */
+    public static synchronized void add(String counter, long value) {
+        counters.merge(counter, value, Long::sum);
+    }
+
+    /**
+     * Get the current value of a counter.
+     */
+    public static synchronized long get(String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    /**
+     * Get (or create) the bins of a histogram. Bin i counts the values in
+     * [2^(i-1), 2^i), bin 0 counts zeros. Callers keep the returned array and
+     * update it with {@link #record(long[], long)}.
+     */
+    public static synchronized long[] histogram(String name) {
+        long[] bins = histograms.get(name);
+        if (bins == null) {
+            bins = new long[65];
+            histograms.put(name, bins);
+        }
+        return bins;
+    }
+
+    /**
+     * Count a value in a histogram obtained from {@link #histogram(String)}.
+     */
+    public static void record(long[] bins, long value) {
+        bins[64 - Long.numberOfLeadingZeros(value)]++;
+    }
+
+    /**
+     * Record the statistics of one LSH band.
+     */
+    public static synchronized void recordBand(int band, long bucketingNanos, long verificationNanos,
+                                               long docs, long buckets, long candidates, long verified) {
+        bands.add(new long[] { band, bucketingNanos, verificationNanos, buckets, candidates, verified });
+        recordStage("bucketing", bucketingNanos, docs);
+        recordStage("verification", verificationNanos, candidates);
+        add("buckets", buckets);
+        add("candidates", candidates);
+        add("verified", verified);
+    }
+
+    /**
+     * Record the read and shingle stages of a reader.
+     */
+    public static void recordReader(Reader reader) {
+        recordStage("read", reader.getReadNanos(), reader.getDocsRead());
+        recordStage("shingle", reader.getShingleNanos(), reader.getDocsRead());
+        add("documents", reader.getDocsRead());
+        add("shingles", reader.getShinglesRead());
+    }
+
+    /**
+     * Write all metrics, together with the heap and GC statistics of this JVM,
+     * as a JSON report.
+     * @param reportFile the file to write the report to
+     */
+    public static synchronized void writeReport(String reportFile) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"totalSeconds\": ").append((System.nanoTime() - startTime) / 1e9).append(",\n");
+
+        json.append("  \"parameters\": {");
+        String sep = "\n";
+        for (Map.Entry<String, String> e : parameters.entrySet()) {
+            json.append(sep).append("    ").append(quote(e.getKey())).append(": ").append(quote(e.getValue()));
+            sep = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"stages\": {");
+        sep = "\n";
+        for (Map.Entry<String, long[]> e : stages.entrySet()) {
+            double seconds = e.getValue()[0] / 1e9;
+            long items = e.getValue()[1];
+            json.append(sep).append("    ").append(quote(e.getKey())).append(": {")
+                .append("\"seconds\": ").append(seconds)
+                .append(", \"items\": ").append(items)
+                .append(", \"itemsPerSecond\": ").append(seconds > 0 ? items / seconds : 0)
+                .append("}");
+            sep = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"counters\": {");
+        sep = "\n";
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            json.append(sep).append("    ").append(quote(e.getKey())).append(": ").append(e.getValue());
+            sep = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"histograms\": {");
+        sep = "\n";
+        for (Map.Entry<String, long[]> e : histograms.entrySet()) {
+            json.append(sep).append("    ").append(quote(e.getKey())).append(": [");
+            long[] bins = e.getValue();
+            String binSep = "";
+            for (int bin = 0; bin < bins.length; bin++) {
+                if (bins[bin] > 0) {
+                    long lower = bin == 0 ? 0 : 1L << (bin - 1);
+                    json.append(binSep).append("{\"from\": ").append(lower).append(", \"count\": ").append(bins[bin]).append("}");
+                    binSep = ", ";
+                }
+            }
+            json.append("]");
+            sep = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"bands\": [");
+        sep = "\n";
+        for (long[] band : bands) {
+            json.append(sep).append("    {\"band\": ").append(band[0])
+                .append(", \"bucketingSeconds\": ").append(band[1] / 1e9)
+                .append(", \"verificationSeconds\": ").append(band[2] / 1e9)
+                .append(", \"buckets\": ").append(band[3])
+                .append(", \"candidates\": ").append(band[4])
+                .append(", \"verified\": ").append(band[5]).append("}");
+            sep = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        json.append("  \"heap\": {\"used\": ").append(heap.getUsed())
+            .append(", \"committed\": ").append(heap.getCommitted())
+            .append(", \"max\": ").append(heap.getMax())
+            .append(", \"peak\": ").append(peakHeap).append("},\n");
+
+        json.append("  \"gc\": [");
+        sep = "\n";
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            json.append(sep).append("    {\"name\": ").append(quote(gc.getName()))
+                .append(", \"collections\": ").append(gc.getCollectionCount())
+                .append(", \"seconds\": ").append(gc.getCollectionTime() / 1000.0).append("}");
+            sep = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(reportFile));
+            bw.write(json.toString());
+            bw.close();
+            System.out.println("Run report saved to '" + reportFile + "'");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
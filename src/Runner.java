@@ -13,9 +13,69 @@ import java.io.*;
  *  java Runner -threshold 0.5 -method bf -maxTweets 100 -dataFile data -shingleLength 5
  * Example command to run with LSH similarity search:
  *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20
+ * Example command to run with SimHash similarity search (pairs within -maxHamming bits, by default
+ * the distance that corresponds to -threshold, capped at 3 bits for 64-bit and 7 bits for 128-bit fingerprints):
+ *  java Runner -threshold 0.9 -method simhash -maxTweets 100 -dataFile data -shingleLength 3 -simhashBits 64
+ * Example command to sweep over LSH configurations (results are written as CSV to the output file):
+ *  java Runner -threshold 0.9 -method sweep -maxTweets 100000 -dataFile data -shingleLength 3 -numHashes 48
+ *      -sweepBands 1,2,4,6,8 -sweepBuckets 1000000,1000000000 -sampleSize 20000 -groundTruthFile truth.tsv
+ * Example command to estimate the number of pairs above some thresholds and the candidates of a bands x rows
+ * plan from a random sample of -sampleSize of the first -maxTweets documents (estimates are written as CSV to the
+ * output file):
+ *  java Runner -threshold 0.9 -method estimate -maxTweets 5000000 -dataFile data -shingleLength 3 -numHashes 48
+ *      -numBands 8 -numBuckets 1000000000 -sampleSize 10000 -estimateThresholds 0.5,0.7,0.8,0.9
+ * Example command to search with an LSH Forest of -numBands trees, whose prefix length adapts to -threshold:
+ *  java Runner -threshold 0.8 -method forest -maxTweets 100000 -dataFile data -shingleLength 3 -numHashes 48 -numBands 4
+ * Add -forestThresholds 0.7,0.8,0.9 to query one forest for every threshold and compare time, candidates and
+ * pairs with LSH band tables rebuilt per threshold (written as CSV to the output file).
+ * Example command to replay the tweets as a stream and find the near-duplicates within a sliding window of the
+ * last 1000000 tweets and at most 24 hours (pairs are written in arrival order as soon as they are found):
+ *  java Runner -threshold 0.9 -method stream -maxTweets 5000000 -dataFile data -shingleLength 3 -numHashes 48
+ *      -numBands 8 -numBuckets 1000000000 -windowSize 1000000 -windowHours 24
+ * Example command to find the near-duplicates between the tweets and a small set of known spam tweets, where only
+ * the smaller of -dataFile and -joinFile is indexed and the other one is streamed (pairs are written as the
+ * -dataFile id, the -joinFile id and their similarity):
+ *  java Runner -threshold 0.8 -method join -maxTweets 5000000 -dataFile data -joinFile spam.tsv -joinMaxTweets 1000
+ *      -shingleLength 3 -numHashes 48 -numBands 8 -numBuckets 1000000000
+ * Add -outputFormat binary to write the pairs as a compact binary PairFile instead of TSV (not for the stream and
+ * join methods or -topK); convert it back with
+ *  java PairFile pairs.bin pairs.tsv
+ * Add -externalSort 1000000 to stream the pairs through an external sort that keeps at most
+ * 1000000 pairs in memory (temporary files are written to -spillDir, default the output directory).
+ * Add -topK 10 to write the 10 most similar items of every item (with similarity above -threshold)
+ * instead of all pairs above the threshold, and -queryIds ids.txt to only write them for the tweet ids
+ * in ids.txt (one per line).
+ * LSH switches to out-of-core banding (signatures and band keys spilled to -spillDir) when its
+ * estimated memory exceeds -memoryBudgetMB (default: the maximal heap size).
+ * Use -numShingles 0 to keep the full 32-bit shingle hashes instead of reducing them modulo -numShingles;
+ * minhash signatures are computed with seeded hash functions, so the same -seed gives the same signatures.
+ * Add -singletonFilter true to count the band keys in a sketch first and only store the documents whose key
+ * is shared in the LSH band tables, which saves memory when most buckets hold a single document.
+ * Add -intSignatures true to keep the full 31-bit minhashes instead of 15 bits, so that unrelated documents rarely
+ * agree on a minhash by chance (twice the signature memory, in-memory LSH only).
+ * Add -cascadeHashes 96 to band on the -numHashes minhashes and refine the similarity of candidate pairs
+ * with 96 more minhashes, which are only computed for documents in a candidate pair (the data is read twice).
+ * Add -sizePartition true to build the LSH band tables per range of shingle set sizes, so that
+ * documents whose sizes differ too much to reach -threshold are never candidates.
+ * Add -clusterOutput clusters.tsv to write the clusters of near-duplicates (connected components of the
+ * similar pairs) as representative, size, maximal and minimal similarity and members; the pairs are only
+ * kept in memory and written as well if -outputFile is given.
+ * Add -runDir dir to checkpoint an LSH run (signatures and the pairs of every completed band) in dir,
+ * and -runDir dir -resume true to continue an interrupted run with the same parameters.
+ * Add -workers 4 to run LSH with 4 worker processes that share the signatures through a mapped file.
+ * -dataFile may also be a directory or a glob of plain or gzipped TSV files (e.g. "dumps/*.tsv.gz"),
+ * which are decompressed and shingled by -readThreads threads (default: the number of processors).
+ * Example command to compare the read throughput of such files:
+ *  java Runner -method readbench -dataFile "dumps/*.tsv.gz" -shingleLength 3 -readThreads 8
+ * Add -batchSizes 1,64,1024,8192 to a read benchmark of a single TSV file to instead compare reading and
+ * minhashing the documents one at a time with reading them in batches of every size (each the best of 5 runs,
+ * after warming up both).
  */
 public class Runner {
 
+    // the supported values of -method
+    static final List<String> METHODS = Arrays.asList("bf", "lsh", "forest", "simhash", "sweep", "estimate", "stream", "join", "readbench");
+
     public static void main(String[] args) {
 
         String inputFile = "";
@@ -29,13 +89,47 @@ public class Runner {
         int maxTweets = -1;
         int shingleLength = -1;
         float threshold = -1;
+        String sweepBands = "";
+        String sweepRows = "";
+        String sweepBuckets = "";
+        int sampleSize = 10000;
+        String groundTruthFile = "";
+        String reportFile = "";
+        int externalSort = 0;
+        String spillDir = "";
+        int topK = 0;
+        String queryIds = "";
+        long memoryBudgetMB = 0;
+        int workers = 0;
+        int readThreads = Runtime.getRuntime().availableProcessors();
+        int simhashBits = 64;
+        int maxHamming = -1;
+        String runDir = "";
+        boolean resume = false;
+        boolean sizePartition = false;
+        int cascadeHashes = 0;
+        boolean singletonFilter = false;
+        boolean intSignatures = false;
+        String estimateThresholds = "";
+        String outputFormat = "tsv";
+        String forestThresholds = "";
+        String batchSizes = "";
+        String joinFile = "";
+        int joinMaxTweets = -1;
+        int windowSize = 1000000;
+        double windowHours = 0;
+        String clusterOutput = "";
 
         int i = 0;
         while (i < args.length && args[i].startsWith("-")) {
             String arg = args[i];
             if (arg.equals("-method")) {
-                if (!args[i+1].equals("bf") && !args[i+1].equals("lsh")){
-                    System.err.println("The search method should either be brute force (bf) or minhash and locality sensitive hashing (lsh)");
+                if (!METHODS.contains(args[i+1])){
+                    System.err.println("The search method should either be brute force (bf), minhash and locality sensitive hashing (lsh), "
+                        + "an LSH Forest (forest), "
+                        + "simhash (simhash), a parameter sweep (sweep), a sample estimate (estimate), a sliding window stream (stream), "
+                        + "a join of two corpora (join) "
+                        + "or a read benchmark (readbench)");
                 }
                 method = args[i+1];
             } else if(arg.equals("-numHashes")) {
@@ -58,13 +152,326 @@ public class Runner {
                 threshold = Float.parseFloat(args[i+1]);
             } else if(arg.equals("-outputFile")) {
                 outputFile = args[i + 1];
+            } else if(arg.equals("-sweepBands")) {
+                sweepBands = args[i + 1];
+            } else if(arg.equals("-sweepRows")) {
+                sweepRows = args[i + 1];
+            } else if(arg.equals("-sweepBuckets")) {
+                sweepBuckets = args[i + 1];
+            } else if(arg.equals("-sampleSize")) {
+                sampleSize = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-groundTruthFile")) {
+                groundTruthFile = args[i + 1];
+            } else if(arg.equals("-reportFile")) {
+                reportFile = args[i + 1];
+            } else if(arg.equals("-externalSort")) {
+                externalSort = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-spillDir")) {
+                spillDir = args[i + 1];
+            } else if(arg.equals("-topK")) {
+                topK = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-queryIds")) {
+                queryIds = args[i + 1];
+            } else if(arg.equals("-memoryBudgetMB")) {
+                memoryBudgetMB = Long.parseLong(args[i+1]);
+            } else if(arg.equals("-workers")) {
+                workers = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-readThreads")) {
+                readThreads = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-simhashBits")) {
+                simhashBits = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-maxHamming")) {
+                maxHamming = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-runDir")) {
+                runDir = args[i + 1];
+            } else if(arg.equals("-resume")) {
+                resume = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-sizePartition")) {
+                sizePartition = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-forestThresholds")) {
+                forestThresholds = args[i + 1];
+            } else if(arg.equals("-batchSizes")) {
+                batchSizes = args[i + 1];
+            } else if(arg.equals("-joinFile")) {
+                joinFile = args[i + 1];
+            } else if(arg.equals("-joinMaxTweets")) {
+                joinMaxTweets = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-windowSize")) {
+                windowSize = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-windowHours")) {
+                windowHours = Double.parseDouble(args[i+1]);
+            } else if(arg.equals("-outputFormat")) {
+                outputFormat = args[i + 1];
+            } else if(arg.equals("-estimateThresholds")) {
+                estimateThresholds = args[i + 1];
+            } else if(arg.equals("-singletonFilter")) {
+                singletonFilter = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-intSignatures")) {
+                intSignatures = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-cascadeHashes")) {
+                cascadeHashes = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-clusterOutput")) {
+                clusterOutput = args[i + 1];
             }
 
             i += 2;
         }
 
+        if (reportFile.isEmpty()) {
+            reportFile = (outputFile.isEmpty() ? clusterOutput : outputFile) + ".report.json";
+        }
+        RunMetrics.reset();
+        RunMetrics.setParameter("method", method);
+        RunMetrics.setParameter("dataFile", inputFile);
+        RunMetrics.setParameter("maxTweets", maxTweets);
+        RunMetrics.setParameter("threshold", threshold);
+        RunMetrics.setParameter("shingleLength", shingleLength);
+        RunMetrics.setParameter("numShingles", numShingles);
+        RunMetrics.setParameter("numHashes", numHashes);
+        RunMetrics.setParameter("numBands", numBands);
+        RunMetrics.setParameter("numBuckets", numBuckets);
+        RunMetrics.setParameter("seed", seed);
+        boolean binaryOutput = outputFormat.equals("binary");
+        RunMetrics.setParameter("outputFormat", outputFormat);
+        if (binaryOutput && (method.equals("stream") || method.equals("join") || topK > 0)) {
+            // A PairFile holds pairs most similar first, these write pairs in arrival order or per document
+            throw new Error("-outputFormat binary is not supported by the stream and join methods or with -topK");
+        }
+
+        // Options that a mode would silently ignore
+        if (method.equals("lsh") && workers > 0 && !runDir.isEmpty()) {
+            throw new Error("-workers and -runDir cannot be combined");
+        }
+        if (method.equals("lsh") && (workers > 0 || !runDir.isEmpty())) {
+            if (sizePartition || singletonFilter || cascadeHashes > 0 || intSignatures) {
+                throw new Error("-sizePartition, -singletonFilter, -cascadeHashes and -intSignatures are only supported "
+                    + "by the in-memory LSH mode, not with -workers or -runDir");
+            }
+            if (topK > 0 || externalSort > 0 || !clusterOutput.isEmpty()) {
+                throw new Error("-topK, -externalSort and -clusterOutput cannot be combined with -workers or -runDir");
+            }
+        }
+        if (!queryIds.isEmpty() && topK <= 0) {
+            throw new Error("-queryIds is only supported with -topK");
+        }
+        if (!clusterOutput.isEmpty() && (topK > 0 || externalSort > 0)) {
+            throw new Error("-clusterOutput cannot be combined with -topK or -externalSort");
+        }
+
         Shingler shingler = new Shingler(shingleLength, numShingles, seed);
-        Reader reader = new TwitterReader(maxTweets, shingler, inputFile);
+        Reader reader = openReader(maxTweets, shingler, inputFile, readThreads);
+
+        if (method.equals("readbench") && !batchSizes.isEmpty()) {
+            if (numHashes == -1) {
+                throw new Error("-numHashes is a mandatory argument for a batch read benchmark");
+            }
+            ReadBenchmark.runBatches(inputFile, maxTweets, shingler, ParameterSweep.parseIntList(batchSizes), numHashes, seed);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("readbench")) {
+            try {
+                ReadBenchmark.run(inputFile, maxTweets, shingler, readThreads,
+                    spillDir.isEmpty() ? new File(System.getProperty("java.io.tmpdir")) : new File(spillDir));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("sweep")) {
+            if (numHashes == -1 || sweepBands.isEmpty()) {
+                throw new Error("Both -numHashes and -sweepBands are mandatory arguments for the sweep method");
+            }
+            if (groundTruthFile.isEmpty()) {
+                groundTruthFile = outputFile + ".truth.tsv";
+            }
+            Reader sampleReader = openReader(Math.min(sampleSize, maxTweets), shingler, inputFile, readThreads);
+            ParameterSweep sweep = new ParameterSweep(reader, sampleReader, inputFile, numHashes, seed);
+            try {
+                sweep.run(threshold,
+                        ParameterSweep.parseIntList(sweepBands),
+                        sweepRows.isEmpty() ? null : ParameterSweep.parseIntList(sweepRows),
+                        sweepBuckets.isEmpty() ? new int[] { numBuckets } : ParameterSweep.parseIntList(sweepBuckets),
+                        groundTruthFile, outputFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (method.equals("estimate")) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the estimate method");
+            }
+            if (maxTweets < sampleSize) {
+                throw new Error("-maxTweets (the number of documents to estimate for) must be at least -sampleSize for the estimate method");
+            }
+            SampleEstimator estimator = new SampleEstimator(inputFile, maxTweets, sampleSize, shingler, numHashes, seed);
+            try {
+                estimator.run(estimateThresholds.isEmpty() ? new double[] { threshold }
+                        : SampleEstimator.parseDoubleList(estimateThresholds),
+                    numBands, numBuckets, outputFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("forest") && !forestThresholds.isEmpty()) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the forest method");
+            }
+            LSHForest forest = new LSHForest(reader, numHashes, numBands, seed);
+            try {
+                forest.compareWithRebuild(SampleEstimator.parseDoubleList(forestThresholds), outputFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            RunMetrics.recordReader(reader);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("stream")) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the stream method");
+            }
+            long windowMillis = windowHours > 0 ? (long) (windowHours * 3600 * 1000) : Long.MAX_VALUE;
+            StreamingLSH stream = new StreamingLSH(reader, numHashes, numBands, numBuckets, seed, windowSize, windowMillis);
+            long startTime = System.currentTimeMillis();
+            System.out.println("Streaming items more similar than " + threshold + " within a window of " + windowSize + " items ... ");
+            OutputEvent event = new OutputEvent();
+            event.begin();
+            try {
+                // Write the pairs as they are found, the ids of expired documents are no longer known
+                BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), 1 << 16);
+                long written = stream.search(threshold, (doc1, doc2, sim) -> {
+                    try {
+                        bw.write(reader.getExternalId(doc1) + "\t" + reader.getExternalId(doc2) + "\t" + (float) sim);
+                        bw.newLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                bw.close();
+                System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+                System.out.println("Found " + written + " similar pairs, saved to '" + outputFile + "'");
+                System.out.println("--------------");
+                RunMetrics.add("emitted", written);
+                event.pairs = written;
+                event.file = outputFile;
+            } catch (IOException | UncheckedIOException e) {
+                e.printStackTrace();
+            }
+            event.commit();
+            RunMetrics.recordReader(reader);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("join")) {
+            if (numHashes == -1 || numBands == -1 || joinFile.isEmpty()) {
+                throw new Error("-numHashes, -numBands and -joinFile are mandatory arguments for the join method");
+            }
+            RunMetrics.setParameter("joinFile", joinFile);
+            Reader joinReader = openReader(joinMaxTweets == -1 ? maxTweets : joinMaxTweets, shingler, joinFile, readThreads);
+            long startTime = System.currentTimeMillis();
+            OutputEvent event = new OutputEvent();
+            event.begin();
+            try {
+                boolean indexLeft = SimilarityJoin.indexLeft(inputFile, reader.getMaxDocs(), joinFile, joinReader.getMaxDocs());
+                SimilarityJoin join = new SimilarityJoin(reader, joinReader, indexLeft, numHashes, numBands, numBuckets, seed);
+                System.out.println("Joining items more similar than " + threshold + ", indexing '"
+                    + (indexLeft ? inputFile : joinFile) + "' ... ");
+                // Write the pairs as they are found, only the ids of the current batch of the streamed side are known
+                BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), 1 << 16);
+                long written = join.search(threshold, (doc1, doc2, sim) -> {
+                    try {
+                        bw.write(reader.getExternalId(doc1) + "\t" + joinReader.getExternalId(doc2) + "\t" + (float) sim);
+                        bw.newLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                bw.close();
+                System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+                System.out.println("Found " + written + " similar pairs, saved to '" + outputFile + "'");
+                System.out.println("--------------");
+                RunMetrics.add("emitted", written);
+                event.pairs = written;
+                event.file = outputFile;
+            } catch (IOException | UncheckedIOException e) {
+                e.printStackTrace();
+            }
+            event.commit();
+            RunMetrics.recordReader(reader);
+            RunMetrics.recordReader(joinReader);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("lsh") && workers > 0) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the LSH method");
+            }
+            File spill = spillDir.isEmpty() ? new File(outputFile).getAbsoluteFile().getParentFile() : new File(spillDir);
+            ShardedLSH sharded = new ShardedLSH(reader, numHashes, numBands, numBuckets, seed, workers, spill);
+            long startTime = System.currentTimeMillis();
+            System.out.println("Searching items more similar than " + threshold + " with " + workers + " workers ... ");
+            try {
+                long written = sharded.run(threshold, outputFile, binaryOutput);
+                System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+                System.out.println("Found " + written + " similar pairs, saved to '" + outputFile + "'");
+                System.out.println("--------------");
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+            RunMetrics.recordReader(reader);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (method.equals("lsh") && !runDir.isEmpty()) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the LSH method");
+            }
+            // Only the parameters that change the result have to match when resuming
+            Properties params = new Properties();
+            params.setProperty("dataFile", inputFile);
+            params.setProperty("maxTweets", Integer.toString(maxTweets));
+            params.setProperty("shingleLength", Integer.toString(shingleLength));
+            params.setProperty("numShingles", Integer.toString(numShingles));
+            params.setProperty("numHashes", Integer.toString(numHashes));
+            params.setProperty("numBands", Integer.toString(numBands));
+            params.setProperty("numBuckets", Integer.toString(numBuckets));
+            params.setProperty("seed", Integer.toString(seed));
+            params.setProperty("threshold", Float.toString(threshold));
+            LSHOptimized lsh = new LSHOptimized(reader, numHashes, numBands, numBuckets, seed);
+            CheckpointedLSH checkpointed = new CheckpointedLSH(lsh, new File(runDir), params);
+            long startTime = System.currentTimeMillis();
+            System.out.println("Searching items more similar than " + threshold + " ... ");
+            OutputEvent event = new OutputEvent();
+            event.begin();
+            try {
+                long written = checkpointed.run(threshold, outputFile, resume, binaryOutput);
+                System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+                System.out.println("Found " + written + " similar pairs, saved to '" + outputFile + "'");
+                System.out.println("--------------");
+                RunMetrics.add("emitted", written);
+                event.pairs = written;
+                event.file = outputFile;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            event.commit();
+            RunMetrics.recordReader(reader);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
 
         SimilaritySearcher searcher = null;
         if (method.equals("bf")) {
@@ -74,17 +481,264 @@ public class Runner {
                 throw new Error("Both -numHashes and -numBands are mandatory arguments for the LSH method");
             }
             // searcher = new LSH(reader, numHashes, numBands, numBuckets, seed);
-            searcher = new LSH(reader, numHashes, numBands, numBuckets, seed);
+            LSHOptimized lsh = cascadeHashes > 0
+                ? new CascadedLSH(reader, numHashes, cascadeHashes, numBands, numBuckets, seed)
+                : new LSHOptimized(reader, numHashes, numBands, numBuckets, seed);
+            // Switch to out-of-core banding when the in-memory mode would not fit the budget (default: the heap)
+            long memoryBudget = memoryBudgetMB > 0 ? memoryBudgetMB * 1024 * 1024 : Runtime.getRuntime().maxMemory();
+            lsh.setOutOfCore(memoryBudget, spillDir.isEmpty()
+                ? new File(outputFile).getAbsoluteFile().getParentFile() : new File(spillDir));
+            lsh.setSizePartitioned(sizePartition);
+            RunMetrics.setParameter("sizePartition", sizePartition);
+            lsh.setSingletonFilter(singletonFilter);
+            RunMetrics.setParameter("singletonFilter", singletonFilter);
+            if (intSignatures && cascadeHashes > 0) {
+                throw new Error("-intSignatures cannot be combined with -cascadeHashes");
+            }
+            lsh.setIntSignatures(intSignatures);
+            RunMetrics.setParameter("intSignatures", intSignatures);
+            searcher = lsh;
+        } else if (method.equals("forest")) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the forest method");
+            }
+            searcher = new LSHForest(reader, numHashes, numBands, seed);
+        } else if (method.equals("simhash")) {
+            RunMetrics.setParameter("simhashBits", simhashBits);
+            RunMetrics.setParameter("maxHamming", maxHamming);
+            searcher = new SimHashSearch(reader, simhashBits, maxHamming, seed);
+        }
+
+        if (topK > 0) {
+            long startTime = System.currentTimeMillis();
+            System.out.println("Searching the " + topK + " most similar items of every item ... ");
+            TopKNeighbours neighbours = searcher.getTopKNeighbours(topK, threshold);
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            System.out.println("--------------");
+            RunMetrics.recordReader(reader);
+            printNeighbours(neighbours, reader, queryIds, outputFile);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (externalSort > 0) {
+            // Stream the pairs into an external sort instead of keeping them in memory
+            File spill = spillDir.isEmpty() ? new File(outputFile).getAbsoluteFile().getParentFile() : new File(spillDir);
+            ExternalPairSorter sorter = new ExternalPairSorter(reader::getExternalId, spill, externalSort);
+
+            long startTime = System.currentTimeMillis();
+            System.out.println("Searching items more similar than " + threshold + " ... ");
+            searcher.searchSimilarPairs(threshold, sorter);
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            System.out.println("--------------");
+            RunMetrics.recordReader(reader);
+            printPairs(sorter, outputFile, binaryOutput);
+            RunMetrics.writeReport(reportFile);
+            return;
+        }
+
+        if (!clusterOutput.isEmpty()) {
+            // Merge the pairs into clusters as they are found, and only keep them when they are written as well
+            UnionFind clusters = new UnionFind(Math.min(reader.getMaxDocs(), 1 << 16));
+            PairCollector pairs = outputFile.isEmpty() ? null : new PairCollector(reader::getExternalId, 1 << 10);
+            long startTime = System.currentTimeMillis();
+            System.out.println("Clustering items more similar than " + threshold + " ... ");
+            searcher.searchSimilarPairs(threshold, pairs == null ? clusters : (doc1, doc2, sim) -> {
+                clusters.accept(doc1, doc2, sim);
+                pairs.accept(doc1, doc2, sim);
+            });
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            System.out.println("--------------");
+            RunMetrics.recordReader(reader);
+            if (pairs != null) {
+                printPairs(pairs, outputFile, binaryOutput);
+            }
+            printClusters(clusters, reader, clusterOutput);
+            RunMetrics.writeReport(reportFile);
+            return;
         }
 
         long startTime = System.currentTimeMillis();
         System.out.println("Searching items more similar than " + threshold + " ... ");
-        Set<SimilarPair> similarItems = searcher.getSimilarPairsAboveThreshold(threshold);
+        PairCollector similarItems = searcher.collectSimilarPairs(threshold);
         System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
         System.out.println("--------------");
-        printPairs(similarItems, outputFile);
+        RunMetrics.recordReader(reader);
+        printPairs(similarItems, outputFile, binaryOutput);
+        RunMetrics.writeReport(reportFile);
+    }
+
+
+    /**
+     * Open the reader for a data file. Directories, globs and gzipped files
+     * are read with a MultiFileTwitterReader, plain files with a TwitterReader.
+     * @param maxDocs maximal number of documents to read
+     * @param shingler a document shingler
+     * @param inputFile a file, a directory or a glob pattern
+     * @param readThreads number of files read concurrently
+     * @return the reader
+     */
+    public static Reader openReader(int maxDocs, Shingler shingler, String inputFile, int readThreads) {
+        if (MultiFileTwitterReader.isMultiFile(inputFile)) {
+            return new MultiFileTwitterReader(maxDocs, shingler, inputFile, readThreads);
+        }
+        return new TwitterReader(maxDocs, shingler, inputFile);
+    }
+
+    /**
+     * Prints the k most similar neighbours of every document, or of the
+     * documents in a query file, one line per neighbour, most similar
+     * neighbours first.
+     * @param neighbours the neighbours of every document
+     * @param reader the reader that maps internal to external ids and back
+     * @param queryFile file with one external id per line, or "" for all documents
+     * @param outputFile The file to write the output to
+     */
+    public static void printNeighbours(TopKNeighbours neighbours, Reader reader, String queryFile, String outputFile){
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        long writeStart = System.nanoTime();
+        long written = 0;
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
+            int[] ids = new int[neighbours.getK()];
+            float[] sims = new float[neighbours.getK()];
+            int numDocs = Math.min(neighbours.getNumDocs(), reader.getDocsRead());
+            int[] docs = queryFile.isEmpty() ? null : readQueryDocs(reader, queryFile, numDocs);
+            int numQueries = docs == null ? numDocs : docs.length;
+            for (int q = 0; q < numQueries; q++) {
+                int doc = docs == null ? q : docs[q];
+                int count = neighbours.getSortedNeighbours(doc, ids, sims);
+                long id = reader.getExternalId(doc);
+                for (int n = 0; n < count; n++) {
+                    bw.write(id + "\t" + reader.getExternalId(ids[n]) + "\t" + sims[n]);
+                    bw.newLine();
+                }
+                written += count;
+            }
+            bw.close();
+            System.out.println("Found " + written + " neighbours, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+        }catch(Exception e) {
+            e.printStackTrace();
+        }
+        RunMetrics.add("emitted", written);
+        RunMetrics.recordStage("output", System.nanoTime() - writeStart, written);
+        event.pairs = written;
+        event.file = outputFile;
+        event.commit();
+    }
+
+    /**
+     * Read the external ids of a query file, one per line, and map them to
+     * internal ids. Ids of documents that were not read are reported and skipped.
+     * @param reader the reader that maps external to internal ids
+     * @param queryFile the file with the external ids
+     * @param numDocs number of documents read
+     * @return the internal ids of the known documents, in file order
+     */
+    static int[] readQueryDocs(Reader reader, String queryFile, int numDocs) throws IOException {
+        int[] docs = new int[16];
+        int count = 0;
+        BufferedReader br = new BufferedReader(new FileReader(queryFile));
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int doc = reader.getInternalId(Long.parseLong(line));
+            if (doc < 0 || doc >= numDocs) {
+                System.out.println("Unknown tweet id " + line + ", skipping");
+                continue;
+            }
+            if (count == docs.length) {
+                docs = Arrays.copyOf(docs, 2 * count);
+            }
+            docs[count++] = doc;
+        }
+        br.close();
+        return Arrays.copyOf(docs, count);
+    }
+
+    /**
+     * Prints the clusters of near-duplicate documents, one line per cluster
+     * of at least two documents.
+     * @param clusters the clusters of the documents
+     * @param reader the reader that maps internal to external ids
+     * @param outputFile The file to write the output to
+     */
+    public static void printClusters(UnionFind clusters, Reader reader, String outputFile){
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        long writeStart = System.nanoTime();
+        long written = 0;
+        try {
+            written = clusters.writeClusters(reader.getDocsRead(), reader::getExternalId, outputFile);
+            System.out.println("Found " + written + " clusters, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+        }catch(Exception e) {
+            e.printStackTrace();
+        }
+        RunMetrics.add("clusters", written);
+        RunMetrics.recordStage("clusterOutput", System.nanoTime() - writeStart, written);
+        event.pairs = written;
+        event.file = outputFile;
+        event.commit();
     }
 
+    /**
+     * Prints the pairs collected by an external sorter and their similarity.
+     * @param sorter the sorter that received the similar pairs
+     * @param outputFile The file to write the output to
+     * @param binary whether to write a binary PairFile instead of TSV
+     */
+    public static void printPairs(ExternalPairSorter sorter, String outputFile, boolean binary){
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        long writeStart = System.nanoTime();
+        long written = 0;
+        try {
+            written = binary ? sorter.writePairFile(outputFile, RunMetrics.getParameters()) : sorter.writeTsv(outputFile);
+            System.out.println("Found " + written + " similar pairs, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+        }catch(Exception e) {
+            e.printStackTrace();
+        }
+        RunMetrics.add("emitted", written);
+        RunMetrics.add("outputBytes", new File(outputFile).length());
+        RunMetrics.recordStage("output", System.nanoTime() - writeStart, written);
+        event.pairs = written;
+        event.file = outputFile;
+        event.commit();
+    }
+
+    /**
+     * Prints the pairs of a collector and their similarity, most similar
+     * pairs first.
+     * @param similarItems the collector that received the similar pairs
+     * @param outputFile The file to write the output to
+     * @param binary whether to write a binary PairFile instead of TSV
+     */
+    public static void printPairs(PairCollector similarItems, String outputFile, boolean binary){
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        long writeStart = System.nanoTime();
+        long written = 0;
+        try {
+            written = binary ? similarItems.writePairFile(outputFile, RunMetrics.getParameters()) : similarItems.writeTsv(outputFile);
+            System.out.println("Found " + written + " similar pairs, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+        }catch(Exception e) {
+            e.printStackTrace();
+        }
+        RunMetrics.add("emitted", written);
+        RunMetrics.add("outputBytes", new File(outputFile).length());
+        RunMetrics.recordStage("output", System.nanoTime() - writeStart, written);
+        event.pairs = written;
+        event.file = outputFile;
+        event.commit();
+    }
 
     /**
      * Prints pairs and their similarity.
@@ -92,6 +746,8 @@ public class Runner {
      * @param outputFile The file to write the output to
      */
     public static void printPairs(Set<SimilarPair> similarItems, String outputFile){
+        OutputEvent event = new OutputEvent();
+        event.begin();
         try {
             File fout = new File(outputFile);
             FileOutputStream fos = new FileOutputStream(fout);
@@ -110,6 +766,9 @@ public class Runner {
         }catch(Exception e) {
             e.printStackTrace();
         }
+        event.pairs = similarItems.size();
+        event.file = outputFile;
+        event.commit();
     }
 
 }
@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Estimates, from a random sample of the documents, how many pairs of the
+ * full data set are above several similarity thresholds and how many
+ * candidates and how large buckets a bands x rows plan will produce, before
+ * running LSH on all documents.
+ *
+ * The sample is a seeded simple random sample of m of the first N lines of
+ * the data file, drawn in one pass with selection sampling; only the sampled
+ * lines are shingled. The head of the file would not do, since tweets are
+ * time ordered and retweets of the same tweet cluster together. Every pair
+ * of sampled documents is compared on its minhash signature, and the band
+ * keys of the sampled documents are hashed into an LSHHashTable per band.
+ * Since every pair of documents is equally likely to be in the sample, a
+ * count c over the m(m-1)/2 sampled pairs scales to c * N(N-1) / (m(m-1))
+ * pairs of the N documents. Near-duplicates come in clusters, so the pairs
+ * are not independent; the confidence intervals come from a delete-a-group
+ * jackknife over GROUPS groups of sampled documents.
+ */
+public class SampleEstimator {
+
+    // number of jackknife groups
+    static final int GROUPS = 10;
+    // z-value of the 95% confidence intervals
+    static final double Z = 1.96;
+
+    private String path;
+    private long numDocs;
+    private int sampleSize;
+    private Shingler shingler;
+    private int numHashes;
+    private int seed;
+
+    /**
+     * Construct an estimator.
+     * @param path the data file, directory or glob
+     * @param numDocs number of documents of the full data set, the first numDocs lines
+     * @param sampleSize number of documents to sample
+     * @param shingler a document shingler
+     * @param numHashes number of hashes in the signatures
+     * @param seed seed for the sample and the hash functions
+     */
+    public SampleEstimator(String path, long numDocs, int sampleSize, Shingler shingler, int numHashes, int seed) {
+        if (sampleSize < 2 || numDocs < sampleSize) {
+            throw new IllegalArgumentException("Cannot sample " + sampleSize + " of " + numDocs + " documents");
+        }
+        this.path = path;
+        this.numDocs = numDocs;
+        this.sampleSize = sampleSize;
+        this.shingler = shingler;
+        this.numHashes = numHashes;
+        this.seed = seed;
+    }
+
+    /**
+     * Draw the sample and compute the signatures of the sampled documents.
+     * When the data has fewer than numDocs lines, numDocs is lowered to the
+     * number of lines; the sample is then smaller but still uniform.
+     * @return the signatures of the sampled documents
+     */
+    short[][] sampleSignatures() throws IOException {
+        long startTime = System.nanoTime();
+        Random random = new Random(seed);
+        HashFamily hashes = new HashFamily(numHashes, seed);
+        int[] scratch = new int[numHashes];
+        short[][] signatures = new short[sampleSize][];
+        int m = 0;
+        long line = 0;
+        for (File file : MultiFileTwitterReader.resolveFiles(path)) {
+            BufferedReader br = MultiFileTwitterReader.open(file);
+            String text;
+            while (line < numDocs && (text = br.readLine()) != null) {
+                String[] cols = text.split("\t", -1);
+                if (cols.length < 3) {
+                    // Not a document for the readers either
+                    continue;
+                }
+                // Selection sampling: take the line with probability (needed) / (remaining)
+                if ((numDocs - line) * random.nextDouble() < sampleSize - m) {
+                    signatures[m] = new short[numHashes];
+                    hashes.signature(shingler.shingle(cols[2]), signatures[m], scratch);
+                    m++;
+                }
+                line++;
+            }
+            br.close();
+        }
+        if (line < numDocs) {
+            System.out.println("The data has only " + line + " of " + numDocs + " documents, sampled " + m);
+            numDocs = line;
+        }
+        RunMetrics.recordStage("sample", System.nanoTime() - startTime, m);
+        return Arrays.copyOf(signatures, m);
+    }
+
+    /**
+     * Estimate the pair counts and the candidate volume, print them and write
+     * them as CSV.
+     * @param thresholds the similarity thresholds to count pairs above
+     * @param numBands number of bands of the plan
+     * @param numBuckets number of buckets of the plan
+     * @param csvFile the file to write the estimates to
+     */
+    public void run(double[] thresholds, int numBands, int numBuckets, String csvFile) throws IOException {
+        long startTime = System.nanoTime();
+        short[][] signatures = sampleSignatures();
+        int m = signatures.length;
+        int[] groupSizes = new int[GROUPS];
+        for (int doc = 0; doc < m; doc++) {
+            groupSizes[doc % GROUPS]++;
+        }
+
+        BufferedWriter bw = new BufferedWriter(new FileWriter(csvFile));
+        bw.write("kind,value,sample_count,estimate,low,high,max_bucket");
+        bw.newLine();
+
+        // Pairs above every threshold, from the fraction of agreeing minhashes
+        double[] sorted = thresholds.clone();
+        Arrays.sort(sorted);
+        long[] counts = new long[sorted.length];
+        long[][] touched = new long[sorted.length][GROUPS];
+        // A pair can only reach the lowest threshold with at most maxDisagree differing minhashes
+        int maxDisagree = (int) Math.floor((1 - sorted[0]) * numHashes);
+        for (int doc1 = 0; doc1 < m; doc1++) {
+            short[] signature1 = signatures[doc1];
+            for (int doc2 = doc1 + 1; doc2 < m; doc2++) {
+                short[] signature2 = signatures[doc2];
+                int disagree = 0;
+                for (int i = 0; i < numHashes && disagree <= maxDisagree; i++) {
+                    if (signature1[i] != signature2[i]) {
+                        disagree++;
+                    }
+                }
+                double sim = (double) (numHashes - disagree) / numHashes;
+                for (int t = 0; t < sorted.length && sim > sorted[t]; t++) {
+                    counts[t]++;
+                    touched[t][doc1 % GROUPS]++;
+                    if (doc2 % GROUPS != doc1 % GROUPS) {
+                        touched[t][doc2 % GROUPS]++;
+                    }
+                }
+            }
+        }
+        for (int t = 0; t < sorted.length; t++) {
+            double[] interval = jackknife(counts[t], touched[t], groupSizes, m);
+            System.out.printf("Pairs above %.2f: %d in sample, estimated %.0f [%.0f, %.0f]%n",
+                sorted[t], counts[t], interval[0], interval[1], interval[2]);
+            writeLine(bw, "pairs_above", Double.toString(sorted[t]), counts[t], interval, -1);
+        }
+
+        // Candidates of every band of the plan, from the bucket sizes of the sample
+        int bandSize = numHashes / numBands;
+        byte[] bandBytes = new byte[bandSize * Short.BYTES];
+        long totalCandidates = 0;
+        long[] totalTouched = new long[GROUPS];
+        long[] bucketSizes = RunMetrics.histogram("sampleBucketSize");
+        double scale = (double) numDocs / m;
+        for (int band = 0; band < numBands; band++) {
+            LSHHashTable table = new LSHHashTable();
+            for (int doc = 0; doc < m; doc++) {
+                int bucket = Minhash.hashBand(signatures[doc], band * bandSize, bandSize, seed, bandBytes) % numBuckets;
+                table.insert(bucket, doc);
+            }
+            long candidates = 0;
+            long[] bandTouched = new long[GROUPS];
+            int maxBucket = 0;
+            int[] inGroup = new int[GROUPS];
+            for (Set<Integer> bucket : table.getAllBuckets()) {
+                int size = bucket.size();
+                RunMetrics.record(bucketSizes, size);
+                maxBucket = Math.max(maxBucket, size);
+                candidates += pairsOf(size);
+                Arrays.fill(inGroup, 0);
+                for (int doc : bucket) {
+                    inGroup[doc % GROUPS]++;
+                }
+                for (int g = 0; g < GROUPS; g++) {
+                    // Pairs of the bucket with at least one document in group g
+                    bandTouched[g] += pairsOf(size) - pairsOf(size - inGroup[g]);
+                }
+            }
+            totalCandidates += candidates;
+            for (int g = 0; g < GROUPS; g++) {
+                totalTouched[g] += bandTouched[g];
+            }
+            double[] interval = jackknife(candidates, bandTouched, groupSizes, m);
+            long scaledMaxBucket = Math.round(maxBucket * scale);
+            System.out.printf("Band %d: %d sample candidates, estimated %.0f [%.0f, %.0f], largest bucket ~%d documents%n",
+                band, candidates, interval[0], interval[1], interval[2], scaledMaxBucket);
+            writeLine(bw, "band_candidates", Integer.toString(band), candidates, interval, scaledMaxBucket);
+        }
+        double[] interval = jackknife(totalCandidates, totalTouched, groupSizes, m);
+        System.out.printf("All %d bands x %d rows: estimated %.0f [%.0f, %.0f] candidates to verify%n",
+            numBands, bandSize, interval[0], interval[1], interval[2]);
+        writeLine(bw, "candidates", numBands + "x" + bandSize, totalCandidates, interval, -1);
+        bw.close();
+
+        RunMetrics.recordStage("estimate", System.nanoTime() - startTime, m);
+        RunMetrics.setParameter("sampleSize", m);
+        RunMetrics.add("estimatedCandidates", Math.round(interval[0]));
+        System.out.println("Estimates saved to '" + csvFile + "'");
+    }
+
+    /**
+     * Scale a count of sampled pairs to the full data set, with a
+     * delete-a-group jackknife confidence interval.
+     * @param count number of sampled pairs counted
+     * @param touched per group, the number of counted pairs with a document in the group
+     * @param groupSizes number of sampled documents per group
+     * @param m number of sampled documents
+     * @return the estimate and the lower and upper bound of its 95% confidence interval
+     */
+    double[] jackknife(long count, long[] touched, int[] groupSizes, int m) {
+        double estimate = count * pairScale(m);
+        double[] partial = new double[GROUPS];
+        double mean = 0;
+        for (int g = 0; g < GROUPS; g++) {
+            partial[g] = (count - touched[g]) * pairScale(m - groupSizes[g]);
+            mean += partial[g] / GROUPS;
+        }
+        double variance = 0;
+        for (int g = 0; g < GROUPS; g++) {
+            variance += (partial[g] - mean) * (partial[g] - mean);
+        }
+        double error = Math.sqrt(variance * (GROUPS - 1) / GROUPS);
+        return new double[] { estimate, Math.max(0, estimate - Z * error), estimate + Z * error };
+    }
+
+    /**
+     * Get the ratio of the number of pairs of the full data set to the number
+     * of pairs of a sample of m documents.
+     */
+    private double pairScale(int m) {
+        return m < 2 ? 0 : (double) pairsOf(numDocs) / pairsOf(m);
+    }
+
+    private static long pairsOf(long n) {
+        return n * (n - 1) / 2;
+    }
+
+    private static void writeLine(BufferedWriter bw, String kind, String value, long sampleCount,
+                                  double[] interval, long maxBucket) throws IOException {
+        bw.write(kind + "," + value + "," + sampleCount + "," + Math.round(interval[0]) + ","
+            + Math.round(interval[1]) + "," + Math.round(interval[2]) + "," + (maxBucket < 0 ? "" : maxBucket));
+        bw.newLine();
+    }
+
+    /**
+     * Parse a comma separated list of numbers.
+     * @param list the list, e.g. "0.5,0.8,0.9"
+     * @return the parsed numbers
+     */
+    public static double[] parseDoubleList(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+}
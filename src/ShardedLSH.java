@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs LSH with several worker processes on the same machine.
+ *
+ * The coordinator reads the documents once and writes the signatures to a
+ * memory-mapped signature file and the band keys to one key file per band
+ * (as in the out-of-core mode of LSHOptimized). It then launches numWorkers
+ * JVMs. Each worker owns a hash range of the band buckets in every band,
+ * verifies the candidate pairs of its buckets against the shared signature
+ * file and writes a sorted, deduplicated partial result. The coordinator
+ * finally merges the partial results into the TSV or PairFile output. When
+ * a worker fails, the other workers are stopped right away.
+ *
+ * Example of a worker command line (launched by the coordinator):
+ *  java ShardedLSH -workDir dir -worker 0 -workers 4 -numBands 6 -threshold 0.9
+ */
+public class ShardedLSH {
+
+    // interval at which the coordinator checks whether the workers have exited
+    static final long POLL_MILLIS = 100;
+
+    private Reader reader;
+    private int numHashes;
+    private int numBands;
+    private int numBuckets;
+    private int seed;
+    private int numWorkers;
+    private File spillDir;
+
+    /**
+     * Construct a sharded LSH coordinator.
+     *
+     * @param reader the document reader
+     * @param numHashes number of hashes to use to construct the signature matrix
+     * @param numBands number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param seed should be used to generate any random numbers needed
+     * @param numWorkers number of worker processes
+     * @param spillDir directory for the signature, key and partial result files
+     */
+    public ShardedLSH(Reader reader, int numHashes, int numBands, int numBuckets, int seed,
+                      int numWorkers, File spillDir) {
+        this.reader = reader;
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numBuckets = numBuckets;
+        this.seed = seed;
+        this.numWorkers = numWorkers;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Find the pairs with similarity above threshold (approximate) and write
+     * them as TSV or as a binary PairFile, most similar pairs first.
+     * @param threshold the similarity threshold
+     * @param outputFile the file to write the pairs to
+     * @param binary whether to write a binary PairFile instead of TSV
+     * @return the number of distinct pairs written
+     */
+    public long run(double threshold, String outputFile, boolean binary) throws IOException, InterruptedException {
+        File workDir = Files.createTempDirectory(this.spillDir.toPath(), "lsh").toFile();
+
+        List<Process> workers = new ArrayList<Process>();
+        try {
+            long startTime = System.nanoTime();
+            System.out.println("Writing signatures and band keys to '" + workDir + "'");
+            LSHOptimized lsh = new LSHOptimized(reader, numHashes, numBands, numBuckets, seed);
+            lsh.writeSignatureFiles(workDir);
+            long signatureTime = System.nanoTime();
+            System.out.println("Signatures took " + (signatureTime - startTime) / 1e9 + " seconds.");
+
+            System.out.println("Launching " + numWorkers + " workers...");
+            for (int worker = 0; worker < numWorkers; worker++) {
+                List<String> command = new ArrayList<String>();
+                command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+                for (String jvmArg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                    // Forward heap settings, but not profiling or debugging agents
+                    if (jvmArg.startsWith("-Xm") || jvmArg.startsWith("-XX:+Use")) {
+                        command.add(jvmArg);
+                    }
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("ShardedLSH");
+                command.add("-workDir");
+                command.add(workDir.getPath());
+                command.add("-worker");
+                command.add(Integer.toString(worker));
+                command.add("-workers");
+                command.add(Integer.toString(numWorkers));
+                command.add("-numBands");
+                command.add(Integer.toString(numBands));
+                command.add("-threshold");
+                command.add(Double.toString(threshold));
+                workers.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            // Poll all workers, so that a failing worker is noticed before the ones launched earlier finish
+            boolean running = true;
+            while (running) {
+                running = false;
+                for (int worker = 0; worker < numWorkers; worker++) {
+                    Process process = workers.get(worker);
+                    if (process.isAlive()) {
+                        running = true;
+                    } else if (process.exitValue() != 0) {
+                        throw new IOException("Worker " + worker + " failed with exit code " + process.exitValue());
+                    }
+                }
+                if (running) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+            long workerTime = System.nanoTime();
+            System.out.println("Workers took " + (workerTime - signatureTime) / 1e9 + " seconds.");
+            RunMetrics.recordStage("workers", workerTime - signatureTime, numWorkers);
+
+            ExternalPairSorter sorter = new ExternalPairSorter(null, workDir, 0);
+            for (int worker = 0; worker < numWorkers; worker++) {
+                sorter.addRun(partialFile(workDir, worker));
+            }
+            long written = binary ? sorter.writePairFile(outputFile, RunMetrics.getParameters()) : sorter.writeTsv(outputFile);
+            long mergeTime = System.nanoTime();
+            System.out.println("Merging took " + (mergeTime - workerTime) / 1e9 + " seconds.");
+            RunMetrics.recordStage("output", mergeTime - workerTime, written);
+            RunMetrics.add("emitted", written);
+            return written;
+        } finally {
+            // A failed worker leaves the others running and the work files behind
+            for (Process process : workers) {
+                process.destroy();
+            }
+            for (Process process : workers) {
+                process.waitFor();
+            }
+            // Band, signature, spill and partial result files
+            File[] workFiles = workDir.listFiles();
+            if (workFiles != null) {
+                for (File workFile : workFiles) {
+                    workFile.delete();
+                }
+            }
+            workDir.delete();
+        }
+    }
+
+    /**
+     * Get the partial result file of a worker.
+     */
+    static File partialFile(File workDir, int worker) {
+        return new File(workDir, "worker_" + worker + ".pairs");
+    }
+
+    /**
+     * Entry point of a worker process.
+     */
+    public static void main(String[] args) throws IOException {
+        File workDir = null;
+        int worker = -1;
+        int numWorkers = -1;
+        int numBands = -1;
+        double threshold = -1;
+        int sortBuffer = 1 << 20;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String arg = args[i];
+            if (arg.equals("-workDir")) {
+                workDir = new File(args[i + 1]);
+            } else if (arg.equals("-worker")) {
+                worker = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-workers")) {
+                numWorkers = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-numBands")) {
+                numBands = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-threshold")) {
+                threshold = Double.parseDouble(args[i + 1]);
+            } else if (arg.equals("-sortBuffer")) {
+                sortBuffer = Integer.parseInt(args[i + 1]);
+            }
+            i += 2;
+        }
+        if (workDir == null || worker < 0 || numWorkers < 1 || numBands < 1) {
+            throw new Error("-workDir, -worker, -workers and -numBands are mandatory arguments for a worker");
+        }
+
+        long startTime = System.nanoTime();
+        SignatureFile signatures = SignatureFile.open(new File(workDir, LSHOptimized.SIGNATURE_FILE));
+        // Verification only needs the signatures, not the reader or the band parameters
+        LSHOptimized lsh = new LSHOptimized(null, signatures.getNumHashes(), numBands, 1, 0);
+        ExternalPairSorter sorter = new ExternalPairSorter(signatures::getId, workDir, sortBuffer);
+        long candidates = 0;
+        for (int band = 0; band < numBands; band++) {
+            candidates += lsh.processBandFile(signatures, LSHOptimized.bandFile(workDir, band), band,
+                                              worker, numWorkers, threshold, sorter);
+        }
+        long written = sorter.writeRun(partialFile(workDir, worker));
+        System.out.println("Worker " + worker + ": " + candidates + " candidates, " + written + " pairs in "
+            + (System.nanoTime() - startTime) / 1e9 + " seconds.");
+    }
+}
@@ -12,7 +12,8 @@ import java.util.Set;
  *
  * It takes all substrings of length k of the document, and maps these
  * substrings to an integer value that is inserted into the documents shingle
- * set.
+ * set. With numShingles 0 the full 32-bit hash of a substring is used,
+ * without reducing it modulo numShingles.
  */
 public class Shingler {
 
@@ -23,7 +24,7 @@ public class Shingler {
     /**
      * Construct a shingler.
      * @param k number of characters in one shingle
-     * @param numShingles number of shingles (i.e., hash buckets) to use
+     * @param numShingles number of shingles (i.e., hash buckets) to use, 0 for the full 32-bit hash space
      * @param seed seed for the hash function
      */
     public Shingler(int k, int numShingles, int seed) {
@@ -39,6 +40,9 @@ public class Shingler {
      */
     private int hashShingle(String shingle) {
         int hash = MurmurHash.hash32(shingle, this.seed);
+        if (getNumShingles() <= 0) {
+            return hash;
+        }
         return Math.abs(hash) % getNumShingles();
     }
 
@@ -59,6 +63,33 @@ public class Shingler {
         return shingled;
     }
 
+    /**
+     * Add the shingles of a document to the current document of a batch,
+     * without building a set; the batch drops the duplicates when the
+     * document ends. Gives the same shingles as shingle(doc).
+     * @param doc document that should be shingled, given as a string
+     * @param batch batch receiving the shingles
+     */
+    public void shingle(String doc, DocumentBatch batch) {
+        for (int i = 0; i < doc.length() - k + 1; i++) {
+            batch.addShingle(hashShingle(doc.substring(i, i + k)));
+        }
+    }
+
+    /**
+     * Get the number of characters in one shingle.
+     */
+    public int getShingleLength() {
+        return this.k;
+    }
+
+    /**
+     * Get the seed of the hash function.
+     */
+    public int getSeed() {
+        return this.seed;
+    }
+
     /**
      * Get the number of unique shingles this shingler has processed.
      * @return number of unique shingles
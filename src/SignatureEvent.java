@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the construction of a signature matrix by
+ * Minhash (including the reading of the documents).
+ *
+ * Disabled by default, enable it with +lsh.Signature#enabled=true.
+ */
+@Name("lsh.Signature")
+@Label("Signature Construction")
+@Category("LSH")
+@Description("Construction of the minhash signature matrix")
+@Enabled(false)
+@StackTrace(false)
+public class SignatureEvent extends jdk.jfr.Event {
+
+    @Label("Documents")
+    int docs;
+
+    @Label("Hashes")
+    int numHashes;
+
+    @Label("Shingle Universe")
+    int numShingles;
+}
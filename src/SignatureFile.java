@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A signature matrix stored in a file and memory-mapped for reading, so the
+ * signatures live in the page cache instead of on the Java heap.
+ *
+ * Layout: a header (magic, numDocs, numHashes) followed by one row per
+ * document holding its external id (long) and its numHashes signature
+ * values (short), big-endian.
+ */
+public class SignatureFile {
+
+    static final int MAGIC = 0x4c534853; // "LSHS"
+    static final int HEADER_BYTES = 12;
+    // maximal size of one mapped region
+    static final long CHUNK_BYTES = 1L << 30;
+
+    private int numDocs;
+    private int numHashes;
+    private int rowBytes;
+    private int rowsPerChunk;
+    private MappedByteBuffer[] chunks;
+
+    private SignatureFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        if (raf.readInt() != MAGIC) {
+            raf.close();
+            throw new IOException("Not a signature file: " + file);
+        }
+        this.numDocs = raf.readInt();
+        this.numHashes = raf.readInt();
+        this.rowBytes = Long.BYTES + numHashes * Short.BYTES;
+        this.rowsPerChunk = (int) (CHUNK_BYTES / rowBytes);
+
+        int numChunks = (numDocs + rowsPerChunk - 1) / rowsPerChunk;
+        this.chunks = new MappedByteBuffer[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            long start = HEADER_BYTES + (long) c * rowsPerChunk * rowBytes;
+            long rows = Math.min(rowsPerChunk, numDocs - (long) c * rowsPerChunk);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, rows * rowBytes);
+        }
+        // The mappings stay valid after the channel is closed
+        raf.close();
+    }
+
+    /**
+     * Map an existing signature file.
+     * @param file the file written by a {@link Writer}
+     * @return the mapped signature file
+     */
+    public static SignatureFile open(File file) throws IOException {
+        return new SignatureFile(file);
+    }
+
+    /**
+     * Create a new signature file.
+     * @param file the file to write
+     * @param numHashes number of hashes per signature
+     * @return a writer that appends the rows
+     */
+    public static Writer create(File file, int numHashes) throws IOException {
+        return new Writer(file, numHashes);
+    }
+
+    /**
+     * Get the number of documents in the file.
+     */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * Get the number of hashes per signature.
+     */
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Get the external id of a document.
+     * @param doc internal id of the document
+     */
+    public long getId(int doc) {
+        return chunks[doc / rowsPerChunk].getLong((doc % rowsPerChunk) * rowBytes);
+    }
+
+    /**
+     * Copy the signature of a document.
+     * @param doc internal id of the document
+     * @param signature receives the numHashes signature values
+     */
+    public void getSignature(int doc, short[] signature) {
+        MappedByteBuffer chunk = chunks[doc / rowsPerChunk];
+        int offset = (doc % rowsPerChunk) * rowBytes + Long.BYTES;
+        for (int i = 0; i < numHashes; i++) {
+            signature[i] = chunk.getShort(offset + i * Short.BYTES);
+        }
+    }
+
+    /**
+     * Appends signature rows to a new signature file.
+     */
+    public static class Writer {
+        private File file;
+        private DataOutputStream out;
+        private int numHashes;
+        private int numDocs;
+
+        private Writer(File file, int numHashes) throws IOException {
+            this.file = file;
+            this.numHashes = numHashes;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(0); // numDocs, filled in by close()
+            out.writeInt(numHashes);
+        }
+
+        /**
+         * Append the row of the next document.
+         * @param id external id of the document
+         * @param signature its numHashes signature values
+         */
+        public void append(long id, short[] signature) throws IOException {
+            out.writeLong(id);
+            for (int i = 0; i < numHashes; i++) {
+                out.writeShort(signature[i]);
+            }
+            numDocs++;
+        }
+
+        /**
+         * Get the number of rows appended so far.
+         */
+        public int getNumDocs() {
+            return numDocs;
+        }
+
+        /**
+         * Close the file and record the number of documents in its header.
+         */
+        public void close() throws IOException {
+            out.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(Integer.BYTES);
+            raf.writeInt(numDocs);
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * SimHash implementation of the similarity searcher, a cheaper alternative to
+ * minhash and LSH for pre-screening.
+ *
+ * Every document gets a fingerprint of 64 or 128 bits: each shingle is hashed
+ * to a random +1/-1 vector (one bit per hyperplane) and bit i of the
+ * fingerprint is set when the sum of the vectors is positive in dimension i.
+ * The Hamming distance h between two fingerprints estimates the angle between
+ * the shingle vectors, and 1 - h / bits is reported as their similarity.
+ *
+ * Pairs within Hamming distance k are found with block tables: the fingerprint
+ * is split into k + 1 blocks, and by the pigeonhole principle such pairs agree
+ * on at least one block. For every block the documents are sorted on the value
+ * of that block, documents with equal values are candidates and the candidates
+ * are verified with Long.bitCount. A pair is only reported for the first block
+ * it agrees on. Search is fast for small k; with many blocks the blocks get
+ * short and the candidate groups large. A block of b bits has at most 2^b
+ * values, so the candidates of a block grow quadratically with the number of
+ * documents once it is much larger than 2^b. The distance derived from a
+ * threshold is therefore capped so that blocks keep at least MIN_BLOCK_BITS
+ * bits (k <= 3 for 64 bits, k <= 7 for 128 bits); larger distances need an
+ * explicit maxHamming.
+ */
+public class SimHashSearch extends SimilaritySearcher {
+
+    // initial number of fingerprints, grown when more documents are read
+    static final int INITIAL_DOCS = 1 << 16;
+    // minimal number of bits of a block when the distance is derived from the threshold
+    static final int MIN_BLOCK_BITS = 16;
+
+    private int numBits;
+    private int maxHamming;
+    private int seed;
+
+    private int words;
+    private long[] fingerprints;
+    private int numDocs;
+
+    /**
+     * Construct a SimHash similarity searcher.
+     *
+     * @param reader the document reader
+     * @param numBits number of bits of a fingerprint, 64 or 128
+     * @param maxHamming maximal Hamming distance of a reported pair, -1 to derive it from the threshold
+     * @param seed seed of the shingle hash function
+     */
+    public SimHashSearch(Reader reader, int numBits, int maxHamming, int seed) {
+        super(reader);
+        if (numBits != 64 && numBits != 128) {
+            throw new IllegalArgumentException("SimHash fingerprints have 64 or 128 bits, not " + numBits);
+        }
+        this.numBits = numBits;
+        this.maxHamming = maxHamming;
+        this.seed = seed;
+        this.words = numBits / 64;
+    }
+
+    /**
+     * Returns the pairs with similarity above threshold (approximate).
+     */
+    @Override
+    public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> similarPairs = new HashSet<SimilarPair>();
+        searchSimilarPairs(threshold, (doc1, doc2, sim) ->
+            similarPairs.add(SimilarPair.of(reader.documents, doc1, doc2, sim)));
+        return similarPairs;
+    }
+
+    /**
+     * Passes the pairs with a fingerprint similarity above threshold, or
+     * within maxHamming bits if it was given, to a sink.
+     */
+    @Override
+    public void searchSimilarPairs(double threshold, PairSink sink) {
+        System.out.println("Reading documents and constructing fingerprints...");
+        constructFingerprints();
+
+        int k;
+        if (this.maxHamming >= 0) {
+            k = this.maxHamming;
+        } else {
+            // Largest distance h with 1 - h / bits > threshold, capped to keep the blocks selective
+            k = (int) Math.ceil((1 - threshold) * numBits) - 1;
+            int maxK = numBits / MIN_BLOCK_BITS - 1;
+            if (k > maxK) {
+                System.out.println("Threshold " + threshold + " needs a distance of " + k + " bits, capped at " + maxK
+                    + " to keep blocks of at least " + MIN_BLOCK_BITS + " bits; use -maxHamming to search further");
+                k = maxK;
+            }
+        }
+        k = Math.max(0, Math.min(k, numBits - 1));
+        int numBlocks = k + 1;
+        System.out.println("Searching fingerprints within " + k + " bits using " + numBlocks + " blocks");
+        for (int block = 0; block < numBlocks; block++) {
+            processBlock(block, numBlocks, k, sink);
+        }
+    }
+
+    /**
+     * Read all documents and compute their fingerprints.
+     */
+    public void constructFingerprints() {
+        long startTime = System.nanoTime();
+        this.fingerprints = new long[Math.min(INITIAL_DOCS, reader.getMaxDocs()) * words];
+        this.numDocs = 0;
+        int[] counts = new int[numBits];
+        while (reader.hasNext()) {
+            Set<Integer> shingles = reader.next();
+            if (shingles == null) {
+                break;
+            }
+            if ((numDocs + 1) * words > fingerprints.length) {
+                fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+            }
+            Arrays.fill(counts, 0);
+            for (int shingle : shingles) {
+                long h = mix(shingle + (long) seed * 0x9e3779b97f4a7c15L);
+                for (int w = 0; w < words; w++) {
+                    for (int b = 0; b < 64; b++) {
+                        counts[w * 64 + b] += ((h >>> b) & 1) == 1 ? 1 : -1;
+                    }
+                    h = mix(h);
+                }
+            }
+            for (int w = 0; w < words; w++) {
+                long fingerprint = 0;
+                for (int b = 0; b < 64; b++) {
+                    if (counts[w * 64 + b] > 0) {
+                        fingerprint |= 1L << b;
+                    }
+                }
+                fingerprints[numDocs * words + w] = fingerprint;
+            }
+            numDocs++;
+        }
+        // Reading and shingling happen inside the fingerprint loop, count them as separate stages
+        long fingerprintNanos = System.nanoTime() - startTime - reader.getReadNanos() - reader.getShingleNanos();
+        RunMetrics.recordStage("signature", fingerprintNanos, numDocs);
+        RunMetrics.add("fingerprintBytes", (long) fingerprints.length * Long.BYTES);
+    }
+
+    /**
+     * Group the documents on one block of their fingerprint and verify the
+     * documents with the same block value.
+     *
+     * @param block index of the block
+     * @param numBlocks number of blocks the fingerprint is split into
+     * @param k maximal Hamming distance of a reported pair
+     * @param sink receives the pairs within distance k
+     * @return the number of candidate pairs that were verified
+     */
+    public long processBlock(int block, int numBlocks, int k, PairSink sink) {
+        BandEvent event = new BandEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+        // (hash of block value << 32 | doc), sorted to group the equal block values
+        long[] keys = new long[numDocs];
+        for (int doc = 0; doc < numDocs; doc++) {
+            keys[doc] = (mix(blockValue(doc, block, numBlocks)) << 32) | doc;
+        }
+        Arrays.sort(keys);
+
+        long bucketedTime = System.nanoTime();
+        long[] bucketSizes = RunMetrics.histogram("bucketSize");
+        long numGroups = 0;
+        long numCandidates = 0;
+        long numVerified = 0;
+        int start = 0;
+        while (start < numDocs) {
+            // The group spans [start, end)
+            int end = start + 1;
+            while (end < numDocs && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+                end++;
+            }
+            numGroups++;
+            RunMetrics.record(bucketSizes, end - start);
+            for (int i = start; i < end - 1; i++) {
+                int doc1 = (int) keys[i];
+                for (int j = i + 1; j < end; j++) {
+                    int doc2 = (int) keys[j];
+                    // Skip hash collisions and pairs that were reported for an earlier block
+                    if (!isFirstEqualBlock(doc1, doc2, block, numBlocks)) {
+                        continue;
+                    }
+                    numCandidates++;
+                    int distance = hammingDistance(doc1, doc2);
+                    if (distance <= k) {
+                        numVerified++;
+                        sink.accept(Math.min(doc1, doc2), Math.max(doc1, doc2), 1 - (double) distance / numBits);
+                    }
+                }
+            }
+            start = end;
+        }
+        RunMetrics.recordBand(block, bucketedTime - startTime, System.nanoTime() - bucketedTime, numDocs,
+                              numGroups, numCandidates, numVerified);
+        event.band = block;
+        event.docs = numDocs;
+        event.buckets = numGroups;
+        event.candidates = numCandidates;
+        event.verified = numVerified;
+        event.commit();
+        return numCandidates;
+    }
+
+    /**
+     * Get the Hamming distance between the fingerprints of two documents.
+     */
+    public int hammingDistance(int doc1, int doc2) {
+        int distance = 0;
+        for (int w = 0; w < words; w++) {
+            distance += Long.bitCount(fingerprints[doc1 * words + w] ^ fingerprints[doc2 * words + w]);
+        }
+        return distance;
+    }
+
+    /**
+     * Check that two documents agree on a block but on none of the blocks
+     * before it.
+     */
+    private boolean isFirstEqualBlock(int doc1, int doc2, int block, int numBlocks) {
+        for (int b = 0; b < block; b++) {
+            if (blockValue(doc1, b, numBlocks) == blockValue(doc2, b, numBlocks)) {
+                return false;
+            }
+        }
+        return blockValue(doc1, block, numBlocks) == blockValue(doc2, block, numBlocks);
+    }
+
+    /**
+     * Get the bits of a block of a fingerprint. Block b covers the bits
+     * [b * numBits / numBlocks, (b + 1) * numBits / numBlocks).
+     */
+    private long blockValue(int doc, int block, int numBlocks) {
+        int from = block * numBits / numBlocks;
+        int to = (block + 1) * numBits / numBlocks;
+        long value = 0;
+        for (int bit = from; bit < to; ) {
+            int word = bit >>> 6;
+            int offset = bit & 63;
+            // number of bits of the block in this word
+            int length = Math.min(to - bit, 64 - offset);
+            long bits = fingerprints[doc * words + word] >>> offset;
+            if (length < 64) {
+                bits &= (1L << length) - 1;
+            }
+            value = (value << length) | bits;
+            bit += length;
+        }
+        return value;
+    }
+
+    /**
+     * Get the number of fingerprinted documents.
+     */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * SplitMix64 finalizer, used to hash shingles and block values.
+     */
+    static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -23,6 +23,17 @@ public class SimilarPair implements Comparable<SimilarPair>{
 		this.sim = sim;
 	}
 
+	/**
+	 * Construct a SimilarPair object from internal document ids.
+	 * @param documents the registry that maps the internal to the external ids
+	 * @param doc1 internal id of object 1
+	 * @param doc2 internal id of object 2
+	 * @param sim their similarity
+	 */
+	public static SimilarPair of(DocumentRegistry documents, int doc1, int doc2, double sim){
+		return new SimilarPair(documents.getId(doc1), documents.getId(doc2), sim);
+	}
+
 	/**
 	 * Comparing a SimilarPair object to another SimilarPair object.
 	 */
@@ -76,8 +87,26 @@ public class SimilarPair implements Comparable<SimilarPair>{
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        return  prime * (int) (1 + id1 * id2);
+        return (int) pairHash(id1, id2);
+    }
+
+    /**
+     * Order-independent hash of a pair of ids. Twitter ids are large and
+     * share their low bits, so the ids are ordered and fully mixed instead
+     * of multiplied and truncated to an int.
+     * @param id1 id of object 1
+     * @param id2 id of object 2
+     * @return a 64-bit hash, equal for (id1, id2) and (id2, id1)
+     */
+    public static long pairHash(long id1, long id2) {
+        long h = Math.min(id1, id2) * 0x9e3779b97f4a7c15L + Math.max(id1, id2);
+        // MurmurHash3 finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     @Override
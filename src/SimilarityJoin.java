@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LSH similarity join of two corpora R and S: finds the pairs (r, s) of a
+ * document r of R and a document s of S with similarity above a threshold,
+ * without the pairs within R or within S.
+ *
+ * Only the smaller corpus (see indexLeft) is indexed: its minhash signatures
+ * are computed and the band keys of every band are stored as a sorted array
+ * of (bucket, document) keys. The larger corpus is then
+ * read in batches; the signature of each of its documents is computed, its
+ * band keys are looked up in the arrays and the documents it collides with
+ * are verified, after which the signature is forgotten. Memory thus scales
+ * with the smaller corpus, and the larger one is only read once.
+ *
+ * Pairs are verified with the Jaccard similarity of the sets of signature
+ * values, like LSHOptimized, so the pairs of a join are those a self-join
+ * of R and S together would find between R and S.
+ */
+public class SimilarityJoin {
+
+    private Reader left;
+    private Reader right;
+    private int numHashes;
+    private int numBands;
+    private int numBuckets;
+    private int seed;
+
+    // the indexed corpus and the streamed corpus
+    private Reader small;
+    private Reader large;
+    // per band, the (bucket << 32 | document) keys of the indexed corpus, sorted
+    private long[][] tables;
+    // per document of the indexed corpus, the distinct values of its signature, sorted
+    private short[][] values;
+
+    /**
+     * Construct a similarity join.
+     *
+     * @param left the reader of R, its documents are doc1 of the pairs
+     * @param right the reader of S, its documents are doc2 of the pairs
+     * @param indexLeft whether R is indexed and S streamed, or the other way around
+     * @param numHashes number of hashes to use to construct the signatures
+     * @param numBands number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to hash the band signatures into
+     * @param seed should be used to generate any random numbers needed
+     */
+    public SimilarityJoin(Reader left, Reader right, boolean indexLeft, int numHashes, int numBands, int numBuckets, int seed) {
+        this.left = left;
+        this.right = right;
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numBuckets = numBuckets;
+        this.seed = seed;
+        this.small = indexLeft ? left : right;
+        this.large = indexLeft ? right : left;
+    }
+
+    /**
+     * Decide which of two corpora to index: the one with the fewest documents
+     * that will actually be read. The documents are counted without parsing,
+     * and counting stops once the smaller corpus is known, so only about
+     * twice the smaller corpus is scanned.
+     * @param leftPath the file, directory or glob of R
+     * @param leftMaxDocs maximal number of documents read from R (getMaxDocs of its reader)
+     * @param rightPath the file, directory or glob of S
+     * @param rightMaxDocs maximal number of documents read from S
+     * @return whether R should be indexed
+     */
+    public static boolean indexLeft(String leftPath, int leftMaxDocs, String rightPath, int rightMaxDocs) throws IOException {
+        int leftLimit = Math.max(0, leftMaxDocs);
+        int rightLimit = Math.max(0, rightMaxDocs);
+        // S counted up to the limit of R, then R counted up to one more than S
+        int rightDocs = MultiFileTwitterReader.countDocuments(rightPath, Math.min(rightLimit, leftLimit));
+        int leftDocs = MultiFileTwitterReader.countDocuments(leftPath, Math.min(leftLimit, rightDocs + 1));
+        return leftDocs <= rightDocs;
+    }
+
+    /**
+     * Check whether R is the indexed corpus.
+     */
+    public boolean isLeftIndexed() {
+        return small == left;
+    }
+
+    /**
+     * Pass the pairs of a document of R and a document of S with similarity
+     * above threshold (approximate) to a sink, doc1 being the internal id in
+     * R and doc2 the internal id in S. Every pair is passed once. The external
+     * ids of the streamed corpus are only kept for the current batch, so the
+     * sink should look them up when it accepts a pair.
+     * @param threshold the similarity threshold
+     * @param sink receives the pairs above threshold
+     * @return the number of pairs passed to the sink
+     */
+    public long search(double threshold, PairSink sink) {
+        HashFamily hashes = new HashFamily(numHashes, seed);
+        int bandSize = numHashes / numBands;
+        byte[] bandBytes = new byte[bandSize * Short.BYTES];
+        build(hashes, bandSize, bandBytes);
+
+        long startTime = System.nanoTime();
+        boolean leftIsSmall = isLeftIndexed();
+        short[] signature = new short[numHashes];
+        short[] distinct = new short[numHashes];
+        int[] scratch = new int[numHashes];
+        // last document of the streamed corpus that was compared with a document of the index
+        int[] compared = new int[values.length];
+        Arrays.fill(compared, -1);
+        long numCandidates = 0;
+        long numVerified = 0;
+        int numDocs = 0;
+
+        DocumentBatch batch = new DocumentBatch(Minhash.BATCH_SIZE);
+        while (large.nextBatch(batch) > 0) {
+            // Only the ids of the current batch are needed by the sink, older ids and sizes are dropped
+            large.dropIdsBefore(batch.getFirstDoc());
+            int[] shingles = batch.getShingles();
+            for (int i = 0; i < batch.getSize(); i++) {
+                int doc = batch.getFirstDoc() + i;
+                hashes.signature(shingles, batch.getStart(i), batch.getEnd(i), signature, scratch);
+                int numDistinct = -1;
+                for (int band = 0; band < numBands; band++) {
+                    int bucket = Minhash.hashBand(signature, band * bandSize, bandSize, seed, bandBytes) % numBuckets;
+                    long[] table = tables[band];
+                    // The keys of a bucket start at (bucket, 0)
+                    int pos = Arrays.binarySearch(table, (long) bucket << 32);
+                    for (pos = pos >= 0 ? pos : -pos - 1; pos < table.length && (int) (table[pos] >>> 32) == bucket; pos++) {
+                        int other = (int) table[pos];
+                        if (compared[other] == doc) {
+                            continue;
+                        }
+                        compared[other] = doc;
+                        numCandidates++;
+                        if (numDistinct < 0) {
+                            numDistinct = distinctValues(signature, distinct);
+                        }
+                        double sim = jaccard(values[other], values[other].length, distinct, numDistinct);
+                        if (sim > threshold) {
+                            numVerified++;
+                            if (leftIsSmall) {
+                                sink.accept(other, doc, sim);
+                            } else {
+                                sink.accept(doc, other, sim);
+                            }
+                        }
+                    }
+                }
+            }
+            numDocs += batch.getSize();
+        }
+
+        RunMetrics.recordStage("joinProbe", System.nanoTime() - startTime - large.getReadNanos() - large.getShingleNanos(),
+                               numDocs);
+        RunMetrics.add("candidates", numCandidates);
+        RunMetrics.add("verified", numVerified);
+        System.out.println("Streamed " + numDocs + " documents through the index of " + values.length + " documents: "
+            + numCandidates + " candidates, " + numVerified + " pairs");
+        return numVerified;
+    }
+
+    /**
+     * Read the smaller corpus and store its band keys and signature values.
+     */
+    private void build(HashFamily hashes, int bandSize, byte[] bandBytes) {
+        long startTime = System.nanoTime();
+        short[][] signatureMatrix = Minhash.constructSignatureMatrixOptimized(small, hashes);
+        int numDocs = signatureMatrix.length;
+
+        tables = new long[numBands][numDocs];
+        values = new short[numDocs][];
+        short[] distinct = new short[numHashes];
+        for (int doc = 0; doc < numDocs; doc++) {
+            for (int band = 0; band < numBands; band++) {
+                int bucket = Minhash.hashBand(signatureMatrix[doc], band * bandSize, bandSize, seed, bandBytes) % numBuckets;
+                tables[band][doc] = ((long) bucket << 32) | doc;
+            }
+            values[doc] = Arrays.copyOf(distinct, distinctValues(signatureMatrix[doc], distinct));
+            // Only the keys and values are kept
+            signatureMatrix[doc] = null;
+        }
+        for (int band = 0; band < numBands; band++) {
+            Arrays.sort(tables[band]);
+        }
+
+        RunMetrics.recordStage("joinBuild", System.nanoTime() - startTime - small.getReadNanos() - small.getShingleNanos(),
+                               numDocs);
+        RunMetrics.setParameter("joinIndexed", isLeftIndexed() ? "left" : "right");
+        RunMetrics.add("joinIndexedDocs", numDocs);
+    }
+
+    /**
+     * Get the distinct values of a signature in sorted order.
+     * @param signature the signature
+     * @param distinct receives the distinct values, at least signature.length long
+     * @return the number of distinct values
+     */
+    static int distinctValues(short[] signature, short[] distinct) {
+        System.arraycopy(signature, 0, distinct, 0, signature.length);
+        Arrays.sort(distinct, 0, signature.length);
+        int numDistinct = 0;
+        for (int i = 0; i < signature.length; i++) {
+            if (numDistinct == 0 || distinct[i] != distinct[numDistinct - 1]) {
+                distinct[numDistinct++] = distinct[i];
+            }
+        }
+        return numDistinct;
+    }
+
+    /**
+     * Jaccard similarity of two sets given as sorted arrays of distinct values.
+     */
+    static double jaccard(short[] values1, int size1, short[] values2, int size2) {
+        int i = 0;
+        int j = 0;
+        int intersection = 0;
+        while (i < size1 && j < size2) {
+            if (values1[i] < values2[j]) {
+                i++;
+            } else if (values1[i] > values2[j]) {
+                j++;
+            } else {
+                intersection++;
+                i++;
+                j++;
+            }
+        }
+        int union = size1 + size2 - intersection;
+        return union > 0 ? (double) intersection / union : 0;
+    }
+}
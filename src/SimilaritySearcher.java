@@ -27,6 +27,41 @@ public abstract class SimilaritySearcher {
      */
     abstract public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold);
 
+    /**
+     * Passes the pairs of the objectMapping that have a similarity coefficient
+     * exceeding threshold to a sink as soon as they are found, without
+     * keeping them in memory.
+     * @param threshold the similarity threshold
+     * @param sink receives the pairs with similarity above the threshold
+     */
+    abstract public void searchSimilarPairs(double threshold, PairSink sink);
+
+    /**
+     * Returns the distinct pairs of the objectMapping that have a similarity
+     * coefficient exceeding threshold, stored in primitive arrays.
+     * @param threshold the similarity threshold
+     * @return the pairs with similarity above the threshold
+     */
+    public PairCollector collectSimilarPairs(double threshold) {
+        PairCollector pairs = new PairCollector(reader::getExternalId, 1 << 10);
+        searchSimilarPairs(threshold, pairs);
+        return pairs;
+    }
+
+    /**
+     * Returns the k most similar neighbours of every object. Only the pairs
+     * the searcher considers (e.g. the LSH candidates) with a similarity
+     * exceeding minSimilarity are taken into account.
+     * @param k number of neighbours per object
+     * @param minSimilarity the minimal similarity of a neighbour
+     * @return the neighbours of every object
+     */
+    public TopKNeighbours getTopKNeighbours(int k, double minSimilarity) {
+        TopKNeighbours topK = new TopKNeighbours(Math.min(reader.getMaxDocs(), 1 << 16), k);
+        searchSimilarPairs(minSimilarity, topK);
+        return topK;
+    }
+
     /**
      * Jaccard similarity between two sets.
      * @param set1
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming near-duplicate detection over a sliding window of the most
+ * recent documents.
+ *
+ * Documents are read in arrival order. The signature of every document is
+ * matched against the documents in its band buckets, which only hold the
+ * documents of the window, and then inserted in the buckets. A document
+ * leaves the window when windowSize newer documents arrived, or when it is
+ * older than windowMillis relative to the newest document (the time of a
+ * tweet is taken from its snowflake id). Signatures are stored in a ring of
+ * windowSize slots, and every bucket is a FIFO queue, so an expired document
+ * is always at the head of the queues of its band keys. Memory is bounded by
+ * the window instead of the number of documents read.
+ */
+public class StreamingLSH {
+
+    // epoch of the snowflake ids of tweets, in milliseconds
+    static final long TWEET_EPOCH = 1288834974657L;
+    // number of documents between two progress reports
+    static final int REPORT_INTERVAL = 100000;
+
+    private Reader reader;
+    private int numHashes;
+    private int numBands;
+    private int numBuckets;
+    private int seed;
+    private int windowSize;
+    private long windowMillis;
+
+    // ring of the window, document d is stored in slot d % windowSize
+    private short[][] signatures;
+    private long[] times;
+    // last document that was compared with the document in a slot
+    private int[] compared;
+    // per band, the queue of documents of every bucket
+    private List<Map<Integer, IntQueue>> tables;
+
+    /**
+     * Construct a streaming LSH searcher.
+     *
+     * @param reader the document reader, documents are processed in the order they are read
+     * @param numHashes number of hashes in a signature
+     * @param numBands number of bands
+     * @param numBuckets number of buckets to hash the band signatures into
+     * @param seed seed for the hash functions
+     * @param windowSize maximal number of documents in the window
+     * @param windowMillis maximal age of a document in the window, in milliseconds (Long.MAX_VALUE for no limit)
+     */
+    public StreamingLSH(Reader reader, int numHashes, int numBands, int numBuckets, int seed,
+                        int windowSize, long windowMillis) {
+        this.reader = reader;
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numBuckets = numBuckets;
+        this.seed = seed;
+        this.windowSize = windowSize;
+        this.windowMillis = windowMillis;
+        this.signatures = new short[windowSize][];
+        this.times = new long[windowSize];
+        this.compared = new int[windowSize];
+        Arrays.fill(compared, -1);
+        this.tables = new ArrayList<Map<Integer, IntQueue>>(numBands);
+        for (int band = 0; band < numBands; band++) {
+            tables.add(new HashMap<Integer, IntQueue>());
+        }
+    }
+
+    /**
+     * Get the time of a tweet from its snowflake id.
+     * @return the time in milliseconds since the epoch
+     */
+    static long tweetTime(long id) {
+        return (id >>> 22) + TWEET_EPOCH;
+    }
+
+    /**
+     * Read all documents and pass every pair of documents in the same window
+     * with similarity above threshold (approximate) to a sink, as soon as the
+     * second document arrives. Every pair is passed once, the older document
+     * first. The sink may look up the external ids of both documents.
+     * @param threshold the similarity threshold
+     * @param sink receives the pairs above threshold
+     * @return the number of pairs passed to the sink
+     */
+    public long search(double threshold, PairSink sink) {
+        HashFamily hashes = new HashFamily(numHashes, seed);
+        int bandSize = numHashes / numBands;
+        int[] scratch = new int[numHashes];
+        byte[] bandBytes = new byte[bandSize * Short.BYTES];
+
+        long startTime = System.nanoTime();
+        long intervalStart = startTime;
+        long numCandidates = 0;
+        long numEmitted = 0;
+        long numEvicted = 0;
+        long peakSteadyHeap = 0;
+        int oldest = 0;
+        int dropped = 0;
+        int numDocs = 0;
+        while (reader.hasNext()) {
+            Set<Integer> shingleDoc = reader.next();
+            int doc = reader.curDoc;
+            long time = tweetTime(reader.getExternalId(doc));
+
+            // Evict the documents that left the window
+            while (oldest < doc && (doc - oldest >= windowSize || time - times[oldest % windowSize] > windowMillis)) {
+                evict(oldest++, bandSize, bandBytes);
+                numEvicted++;
+            }
+            if (oldest - dropped >= windowSize) {
+                // Drop the ids and sizes in batches, each drop shifts the ones that are kept
+                reader.dropIdsBefore(oldest);
+                dropped = oldest;
+            }
+
+            int slot = doc % windowSize;
+            if (signatures[slot] == null) {
+                signatures[slot] = new short[numHashes];
+            }
+            short[] signature = signatures[slot];
+            hashes.signature(shingleDoc, signature, scratch);
+            times[slot] = time;
+
+            for (int band = 0; band < numBands; band++) {
+                int bucket = Minhash.hashBand(signature, band * bandSize, bandSize, seed, bandBytes) % numBuckets;
+                IntQueue queue = tables.get(band).get(bucket);
+                if (queue == null) {
+                    queue = new IntQueue();
+                    tables.get(band).put(bucket, queue);
+                }
+                for (int i = 0; i < queue.size; i++) {
+                    int other = queue.items[queue.head + i];
+                    int otherSlot = other % windowSize;
+                    if (compared[otherSlot] == doc) {
+                        continue;
+                    }
+                    compared[otherSlot] = doc;
+                    numCandidates++;
+                    double sim = similarity(signatures[otherSlot], signature);
+                    if (sim > threshold) {
+                        numEmitted++;
+                        sink.accept(other, doc, sim);
+                    }
+                }
+                queue.add(doc);
+            }
+
+            numDocs++;
+            if (numDocs % REPORT_INTERVAL == 0) {
+                long now = System.nanoTime();
+                long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                if (oldest > 0) {
+                    // The window is full, the heap is in its steady state
+                    peakSteadyHeap = Math.max(peakSteadyHeap, heap);
+                }
+                System.out.println("Streamed " + numDocs + " documents: " + (long) (REPORT_INTERVAL / ((now - intervalStart) / 1e9))
+                    + " documents per second, " + (doc - oldest + 1) + " in the window, heap " + heap / (1024 * 1024) + " MB");
+                intervalStart = now;
+            }
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        RunMetrics.recordStage("stream", System.nanoTime() - startTime - reader.getReadNanos() - reader.getShingleNanos(),
+                               numDocs);
+        RunMetrics.setParameter("windowSize", windowSize);
+        RunMetrics.setParameter("windowMillis", windowMillis);
+        RunMetrics.add("candidates", numCandidates);
+        RunMetrics.add("verified", numEmitted);
+        RunMetrics.add("evicted", numEvicted);
+        RunMetrics.add("steadyStateHeap", peakSteadyHeap);
+        System.out.println("Streamed " + numDocs + " documents in " + seconds + " seconds ("
+            + (seconds > 0 ? (long) (numDocs / seconds) : 0) + " documents per second), evicted " + numEvicted
+            + ", steady state heap " + peakSteadyHeap / (1024 * 1024) + " MB");
+        return numEmitted;
+    }
+
+    /**
+     * Remove a document that left the window from the buckets of its band keys.
+     */
+    private void evict(int doc, int bandSize, byte[] bandBytes) {
+        short[] signature = signatures[doc % windowSize];
+        for (int band = 0; band < numBands; band++) {
+            int bucket = Minhash.hashBand(signature, band * bandSize, bandSize, seed, bandBytes) % numBuckets;
+            IntQueue queue = tables.get(band).get(bucket);
+            // Documents are inserted and evicted in arrival order, so doc is at the head
+            queue.poll();
+            if (queue.size == 0) {
+                tables.get(band).remove(bucket);
+            }
+        }
+    }
+
+    /**
+     * Estimate the similarity of two documents as the fraction of agreeing
+     * minhashes.
+     */
+    static double similarity(short[] signature1, short[] signature2) {
+        int agree = 0;
+        for (int i = 0; i < signature1.length; i++) {
+            if (signature1[i] == signature2[i]) {
+                agree++;
+            }
+        }
+        return (double) agree / signature1.length;
+    }
+
+    /**
+     * A FIFO queue of ints in an array.
+     */
+    private static class IntQueue {
+        int[] items = new int[2];
+        int head;
+        int size;
+
+        void add(int item) {
+            if (head + size == items.length) {
+                if (size < items.length / 2) {
+                    // Move the items to the front instead of growing
+                    System.arraycopy(items, head, items, 0, size);
+                } else {
+                    items = Arrays.copyOfRange(items, head, head + 2 * items.length);
+                }
+                head = 0;
+            }
+            items[head + size++] = item;
+        }
+
+        int poll() {
+            int item = items[head++];
+            size--;
+            return item;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Arrays;
+
+/**
+ * Keeps the k most similar neighbours of every document.
+ *
+ * Each document owns a bounded min-heap of k slots in two flat primitive
+ * arrays (neighbour ids and similarities), so memory is O(numDocs * k)
+ * regardless of how many pairs are offered. As a PairSink, every pair is
+ * offered to the heaps of both of its documents.
+ */
+public class TopKNeighbours implements PairSink {
+
+    // largest array length the JVM reliably allocates
+    static final int MAX_SLOTS = Integer.MAX_VALUE - 8;
+
+    private int k;
+    // heap slots of document d are [d * k, (d + 1) * k)
+    private int[] neighbours;
+    private float[] sims;
+    // number of used slots per document
+    private int[] counts;
+
+    /**
+     * Construct an empty top-k structure.
+     * @param numDocs expected number of documents, the structure grows if more are offered
+     * @param k number of neighbours to keep per document
+     */
+    public TopKNeighbours(int numDocs, int k) {
+        this.k = k;
+        this.neighbours = new int[slots(numDocs)];
+        this.sims = new float[slots(numDocs)];
+        this.counts = new int[numDocs];
+    }
+
+    @Override
+    public void accept(int doc1, int doc2, double sim) {
+        offer(doc1, doc2, (float) sim);
+        offer(doc2, doc1, (float) sim);
+    }
+
+    /**
+     * Offer a neighbour to the heap of a document. The neighbour is kept if
+     * the heap is not full or if it is more similar than the least similar
+     * neighbour kept so far. Neighbours that are already kept are ignored.
+     * @param doc internal id of the document
+     * @param neighbour internal id of the neighbour
+     * @param sim their similarity
+     */
+    public void offer(int doc, int neighbour, float sim) {
+        if (doc >= counts.length) {
+            grow(doc + 1);
+        }
+        int base = doc * k;
+        int count = counts[doc];
+        if (count == k && sim <= sims[base]) {
+            return;
+        }
+        // The same pair may be offered once per band
+        for (int i = base; i < base + count; i++) {
+            if (neighbours[i] == neighbour) {
+                return;
+            }
+        }
+
+        if (count < k) {
+            // Sift up from the new last slot
+            int i = count;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (sims[base + parent] <= sim) {
+                    break;
+                }
+                neighbours[base + i] = neighbours[base + parent];
+                sims[base + i] = sims[base + parent];
+                i = parent;
+            }
+            neighbours[base + i] = neighbour;
+            sims[base + i] = sim;
+            counts[doc] = count + 1;
+        } else {
+            // Replace the root and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= k) {
+                    break;
+                }
+                if (child + 1 < k && sims[base + child + 1] < sims[base + child]) {
+                    child++;
+                }
+                if (sims[base + child] >= sim) {
+                    break;
+                }
+                neighbours[base + i] = neighbours[base + child];
+                sims[base + i] = sims[base + child];
+                i = child;
+            }
+            neighbours[base + i] = neighbour;
+            sims[base + i] = sim;
+        }
+    }
+
+    /**
+     * Make room for at least numDocs documents.
+     */
+    private void grow(int numDocs) {
+        int capacity = (int) Math.max(numDocs, Math.min(MAX_SLOTS / k, 2L * counts.length));
+        neighbours = Arrays.copyOf(neighbours, slots(capacity));
+        sims = Arrays.copyOf(sims, slots(capacity));
+        counts = Arrays.copyOf(counts, capacity);
+    }
+
+    /**
+     * Get the number of heap slots of numDocs documents.
+     * @throws IllegalArgumentException if they do not fit in an array
+     */
+    private int slots(int numDocs) {
+        long slots = (long) numDocs * k;
+        if (slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Cannot keep " + k + " neighbours of " + numDocs
+                + " documents: " + slots + " heap slots exceed the maximal array length " + MAX_SLOTS);
+        }
+        return (int) slots;
+    }
+
+    /**
+     * Get the number of documents.
+     */
+    public int getNumDocs() {
+        return counts.length;
+    }
+
+    /**
+     * Get the number of neighbours kept for a document (at most k).
+     */
+    public int getCount(int doc) {
+        return counts[doc];
+    }
+
+    /**
+     * Get the neighbours of a document sorted by decreasing similarity.
+     * @param doc internal id of the document
+     * @param neighboursOut receives the neighbour ids, must have room for k entries
+     * @param simsOut receives the similarities, must have room for k entries
+     * @return the number of neighbours
+     */
+    public int getSortedNeighbours(int doc, int[] neighboursOut, float[] simsOut) {
+        int base = doc * k;
+        int count = counts[doc];
+        for (int i = 0; i < count; i++) {
+            neighboursOut[i] = neighbours[base + i];
+            simsOut[i] = sims[base + i];
+        }
+        // Insertion sort, k is small
+        for (int i = 1; i < count; i++) {
+            int n = neighboursOut[i];
+            float s = simsOut[i];
+            int j = i - 1;
+            while (j >= 0 && simsOut[j] < s) {
+                neighboursOut[j + 1] = neighboursOut[j];
+                simsOut[j + 1] = simsOut[j];
+                j--;
+            }
+            neighboursOut[j + 1] = n;
+            simsOut[j + 1] = s;
+        }
+        return count;
+    }
+
+    /**
+     * Get k, the maximal number of neighbours per document.
+     */
+    public int getK() {
+        return k;
+    }
+}
@@ -5,7 +5,6 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.Set;
 
@@ -18,6 +17,8 @@ public class TwitterReader extends Reader {
     private String filePath;
     private BufferedReader br;
     private Scanner scanner;
+    // tweet texts of the current batch, see nextBatch
+    private String[] texts = new String[0];
 
     public TwitterReader(int maxDocs, Shingler shingler, String filePath) {
         super(maxDocs, shingler);
@@ -38,18 +39,72 @@ public class TwitterReader extends Reader {
             System.out.println("at doc " + curDoc);
         }
 
+        long startTime = System.nanoTime();
         String line = scanner.next();
         String[] cols = line.split("\t", -1);
 
         long tweetId = Long.parseLong(cols[1]);
-        this.idToDoc.add(tweetId);
+        this.documents.add(tweetId);
 
         String tweet = cols[2];
+        long parsedTime = System.nanoTime();
         Set<Integer> shingle = this.shingler.shingle(tweet);
+        this.readNanos += parsedTime - startTime;
+        this.shingleNanos += System.nanoTime() - parsedTime;
+        documentRead(shingle.size());
 
         return shingle;
     }
 
+    /**
+     * Read the next documents into a batch. All lines of the batch are parsed
+     * first and then all tweets are shingled straight into the flat shingle
+     * array of the batch, so no shingle set is built per document.
+     */
+    @Override
+    public int nextBatch(DocumentBatch batch) {
+        int firstDoc = this.curDoc + 1;
+        batch.clear(firstDoc);
+        int numDocs = Math.max(0, Math.min(batch.getCapacity(), this.maxDocs - firstDoc));
+        if (texts.length < numDocs) {
+            texts = new String[batch.getCapacity()];
+        }
+
+        long startTime = System.nanoTime();
+        int numRead = 0;
+        while (numRead < numDocs && scanner.hasNext()) {
+            if ((firstDoc + numRead) % 100000 == 0) {
+                System.out.println("at doc " + (firstDoc + numRead));
+            }
+            String line = scanner.next();
+            // Columns 1 and 2 of the line, as split("\t") would give them
+            int idStart = line.indexOf('\t') + 1;
+            int tweetStart = line.indexOf('\t', idStart) + 1;
+            int tweetEnd = line.indexOf('\t', tweetStart);
+            this.documents.add(Long.parseLong(line, idStart, tweetStart - 1, 10));
+            texts[numRead++] = tweetEnd < 0 ? line.substring(tweetStart) : line.substring(tweetStart, tweetEnd);
+        }
+
+        long parsedTime = System.nanoTime();
+        this.readNanos += parsedTime - startTime;
+        for (int i = 0; i < numRead; i++) {
+            this.curDoc = firstDoc + i;
+            batch.beginDocument(this.documents.getId(this.curDoc));
+            this.shingler.shingle(texts[i], batch);
+            texts[i] = null;
+            // Per document, so that a batch event that ends within this batch gets its shingle time
+            long shingledTime = System.nanoTime();
+            this.shingleNanos += shingledTime - parsedTime;
+            parsedTime = shingledTime;
+            documentRead(batch.endDocument());
+        }
+        if (numRead < numDocs) {
+            // the file ended before maxDocs
+            endBatchEvent();
+        }
+        return numRead;
+    }
+
     @Override
     public void reset() {
         try {
@@ -57,7 +112,10 @@ public class TwitterReader extends Reader {
             scanner.useDelimiter("\n");
             System.gc();
             this.curDoc = -1;
-            this.idToDoc = new ArrayList<Long>();
+            clearDocuments();
+            this.readNanos = 0;
+            this.shingleNanos = 0;
+            this.shinglesRead = 0;
         } catch (IOException e) {
             e.printStackTrace();
         }
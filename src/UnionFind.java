@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Groups near-duplicate documents into clusters: the connected components of
+ * the similar pairs.
+ *
+ * As a PairSink, every pair is merged into a union-find structure over the
+ * internal ids (path compression, union by rank) as soon as it is verified.
+ * Besides the parent and rank of every document, the root of every cluster
+ * keeps its size, its smallest internal id (the representative) and the
+ * maximal and minimal similarity of the pairs in the cluster. All state is in
+ * flat primitive arrays, so memory is O(numDocs) regardless of the number of
+ * pairs.
+ */
+public class UnionFind implements PairSink {
+
+    private int[] parent;
+    private byte[] rank;
+    // statistics of the cluster of a root, only valid at roots
+    private int[] size;
+    private int[] representative;
+    private float[] maxSim;
+    private float[] minSim;
+
+    /**
+     * Construct a union-find structure in which every document is its own
+     * cluster.
+     * @param numDocs expected number of documents, the structure grows if more are offered
+     */
+    public UnionFind(int numDocs) {
+        this.parent = new int[0];
+        grow(Math.max(numDocs, 1));
+    }
+
+    @Override
+    public synchronized void accept(int doc1, int doc2, double sim) {
+        union(doc1, doc2, (float) sim);
+    }
+
+    /**
+     * Merge the clusters of two documents.
+     * @param doc1 internal id of the first document
+     * @param doc2 internal id of the second document
+     * @param sim their similarity
+     */
+    public void union(int doc1, int doc2, float sim) {
+        if (Math.max(doc1, doc2) >= parent.length) {
+            grow(Math.max(doc1, doc2) + 1);
+        }
+        int root1 = find(doc1);
+        int root2 = find(doc2);
+        if (root1 != root2) {
+            // Attach the lower ranked tree below the root of the other one
+            if (rank[root1] < rank[root2]) {
+                int tmp = root1;
+                root1 = root2;
+                root2 = tmp;
+            } else if (rank[root1] == rank[root2]) {
+                rank[root1]++;
+            }
+            parent[root2] = root1;
+            size[root1] += size[root2];
+            representative[root1] = Math.min(representative[root1], representative[root2]);
+            maxSim[root1] = Math.max(maxSim[root1], maxSim[root2]);
+            minSim[root1] = Math.min(minSim[root1], minSim[root2]);
+        }
+        maxSim[root1] = Math.max(maxSim[root1], sim);
+        minSim[root1] = Math.min(minSim[root1], sim);
+    }
+
+    /**
+     * Get the root of the cluster of a document, compressing the path to it.
+     * @param doc internal id of the document
+     * @return internal id of the root
+     */
+    public int find(int doc) {
+        if (doc >= parent.length) {
+            return doc;
+        }
+        int root = doc;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        while (parent[doc] != root) {
+            int next = parent[doc];
+            parent[doc] = root;
+            doc = next;
+        }
+        return root;
+    }
+
+    /**
+     * Get the number of documents in the cluster of a document.
+     */
+    public int getClusterSize(int doc) {
+        return doc < parent.length ? size[find(doc)] : 1;
+    }
+
+    /**
+     * Write every cluster of at least two documents as one TSV line:
+     * representative, size, maximal similarity, minimal similarity and the
+     * comma separated ids of all members, clusters ordered by representative.
+     * @param numDocs number of documents read
+     * @param externalIds maps internal document ids to external ids
+     * @param outputFile the file to write the clusters to
+     * @return the number of clusters written
+     */
+    public synchronized long writeClusters(int numDocs, IntToLongFunction externalIds, String outputFile)
+            throws IOException {
+        numDocs = Math.min(numDocs, parent.length);
+        // Counting sort of the documents on their root: members of root r are at [start[r], start[r] + size[r])
+        int[] start = new int[numDocs];
+        int offset = 0;
+        for (int doc = 0; doc < numDocs; doc++) {
+            if (parent[doc] == doc && size[doc] > 1) {
+                start[doc] = offset;
+                offset += size[doc];
+            }
+        }
+        int[] members = new int[offset];
+        int[] filled = new int[numDocs];
+        for (int doc = 0; doc < numDocs; doc++) {
+            int root = find(doc);
+            if (size[root] > 1) {
+                members[start[root] + filled[root]++] = doc;
+            }
+        }
+        filled = null;
+
+        long written = 0;
+        BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile), 1 << 16);
+        for (int doc = 0; doc < numDocs; doc++) {
+            int root = find(doc);
+            // Write every cluster once, when its representative is reached
+            if (size[root] < 2 || representative[root] != doc) {
+                continue;
+            }
+            bw.write(externalIds.applyAsLong(doc) + "\t" + size[root] + "\t" + maxSim[root] + "\t" + minSim[root] + "\t");
+            for (int i = start[root]; i < start[root] + size[root]; i++) {
+                if (i > start[root]) {
+                    bw.write(',');
+                }
+                bw.write(Long.toString(externalIds.applyAsLong(members[i])));
+            }
+            bw.newLine();
+            written++;
+        }
+        bw.close();
+        return written;
+    }
+
+    /**
+     * Grow the arrays to hold at least numDocs documents.
+     */
+    private void grow(int numDocs) {
+        int oldDocs = parent.length;
+        int newDocs = Math.max(numDocs, oldDocs * 2);
+        parent = Arrays.copyOf(parent, newDocs);
+        rank = rank == null ? new byte[newDocs] : Arrays.copyOf(rank, newDocs);
+        size = size == null ? new int[newDocs] : Arrays.copyOf(size, newDocs);
+        representative = representative == null ? new int[newDocs] : Arrays.copyOf(representative, newDocs);
+        maxSim = maxSim == null ? new float[newDocs] : Arrays.copyOf(maxSim, newDocs);
+        minSim = minSim == null ? new float[newDocs] : Arrays.copyOf(minSim, newDocs);
+        for (int doc = oldDocs; doc < newDocs; doc++) {
+            parent[doc] = doc;
+            size[doc] = 1;
+            representative[doc] = doc;
+            maxSim[doc] = Float.NEGATIVE_INFINITY;
+            minSim[doc] = Float.POSITIVE_INFINITY;
+        }
+    }
+}